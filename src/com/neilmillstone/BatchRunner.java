@@ -0,0 +1,212 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Runs many headless copies of a game at once, for automated testing and for measuring how
+ *  the emulation scales across processors.  The ROM is loaded once, and every instance is a
+ *  fork of the same freshly reset machine, so they share the ROM and decoded instructions.
+ *  Each instance plays its own movie, either one of the movie files given or a stream of random
+ *  button presses, for a fixed number of frames.  The instances are run by a fixed pool of
+ *  threads, and the total number of frames emulated per second is reported.
+ *  <P>
+ *  Usage: BatchRunner romfile instances frames [threads|scale] [moviefile...]<br>
+ *  With 'scale', the batch is run with 1, 2, 4... threads up to the number of processors.
+ */
+class BatchRunner {
+
+ Dmgcpu base;
+ int instances;
+ int frames;
+
+ /** The movie files, read into memory so each instance can decode its own copy */
+ byte[][] movieFiles;
+
+ /** For each movie file, a fork of the base machine with the movie's start state loaded.  The
+  *  instances that play the movie are forked from it, so the state is only loaded once and the
+  *  instances share its memory until they write to it.  Created when first needed.
+  */
+ Dmgcpu[] movieBases;
+
+ /** Creates a runner for the ROM.  Instances are forked from a machine that has just been reset
+  *  in deterministic mode, so every run with the same inputs gives the same results.
+  */
+ public BatchRunner(String romFileName, int instances, int frames, byte[][] movieFiles) {
+  Cartridge cartridge = new Cartridge(romFileName, null, false);    // Don't touch the battery RAM file
+  base = new Dmgcpu(cartridge, null, new HeadlessFrameSink());
+  base.soundChip = null;
+  base.throttlePolicy = null;
+  base.setDeterministic(true);
+  base.reset();
+  this.instances = instances;
+  this.frames = frames;
+  this.movieFiles = movieFiles;
+  movieBases = new Dmgcpu[movieFiles.length];
+ }
+
+ /** Creates the machine for an instance, with its movie playing */
+ Dmgcpu createInstance(int index) throws IOException {
+  Dmgcpu dmgcpu;
+  Movie movie = new Movie();
+  if (movieFiles.length > 0) {
+   int file = index % movieFiles.length;
+   if (!movie.readFrom(new ByteArrayInputStream(movieFiles[file]))) {
+    throw new IOException("Not a movie file");
+   }
+   if (movieBases[file] == null) {
+    Dmgcpu start = base.fork();
+    if (!movie.start.load(start)) throw new IOException("Movie start state is not valid");
+    movieBases[file] = start;
+   }
+   dmgcpu = movieBases[file].fork();
+  } else {
+   dmgcpu = base.fork();
+   randomMovie(movie, dmgcpu, index);
+  }
+  if (!movie.play(dmgcpu, false)) throw new IOException("Movie can't be played on this ROM");
+
+  FrameLimit limit = new FrameLimit(frames);
+  dmgcpu.throttlePolicy = limit;
+  movie.savedThrottle = limit;      // Keep counting after the movie finishes
+  return dmgcpu;
+ }
+
+ /** Fills a movie with button presses chosen at random, each held for up to half a second.  The
+  *  index seeds the choice, so each instance gets different input that is the same every run.
+  *  The movie is played from the instance's state as it was forked, so no start state is saved.
+  */
+ static void randomMovie(Movie movie, Dmgcpu dmgcpu, int index) {
+  Random random = new Random(index);
+  movie.romChecksum = dmgcpu.cartridge.calculateChecksum();
+  while (movie.frames < 0x10000) {
+   int button = random.nextInt(9);
+   movie.runMask = (button == 8) ? 0 : 1 << button;
+   movie.runLength = 1 + random.nextInt(30);
+   movie.flushRun();
+  }
+ }
+
+ /** Runs every instance for the set number of frames using a pool of threads.  Returns the
+  *  total number of frames emulated per second.
+  */
+ public double run(int threads) throws Exception {
+  Dmgcpu[] machines = new Dmgcpu[instances];
+  for (int r = 0; r < instances; r++) {
+   machines[r] = createInstance(r);
+  }
+
+  ExecutorService pool = Executors.newFixedThreadPool(threads);
+  Future<?>[] results = new Future<?>[instances];
+  long startTime = System.nanoTime();
+  try {
+   for (int r = 0; r < instances; r++) {
+    final Dmgcpu dmgcpu = machines[r];
+    results[r] = pool.submit(new Runnable() {
+     public void run() {
+      dmgcpu.execute(-1);
+     }
+    });
+   }
+   for (int r = 0; r < instances; r++) {
+    results[r].get();
+   }
+  } finally {
+   pool.shutdown();
+  }
+  long elapsed = Math.max(System.nanoTime() - startTime, 1);
+
+  for (int r = 0; r < instances; r++) {
+   machines[r].dispose();
+  }
+  return (double) instances * frames * 1000000000L / elapsed;
+ }
+
+ public static void main(String[] args) throws Exception {
+  if (args.length < 3) {
+   System.out.println("Usage: BatchRunner romfile instances frames [threads|scale] [moviefile...]");
+   return;
+  }
+  int instances = Integer.parseInt(args[1]);
+  int frames = Integer.parseInt(args[2]);
+  int processors = Runtime.getRuntime().availableProcessors();
+  boolean scale = (args.length > 3) && args[3].equals("scale");
+  int threads = ((args.length > 3) && !scale) ? Integer.parseInt(args[3]) : processors;
+
+  byte[][] movieFiles = new byte[Math.max(args.length - 4, 0)][];
+  for (int r = 0; r < movieFiles.length; r++) {
+   File file = new File(args[r + 4]);
+   movieFiles[r] = new byte[(int) file.length()];
+   DataInputStream is = new DataInputStream(new FileInputStream(file));
+   is.readFully(movieFiles[r]);
+   is.close();
+  }
+
+  BatchRunner runner = new BatchRunner(args[0], instances, frames, movieFiles);
+  if (!scale) {
+   report(instances, frames, threads, runner.run(threads));
+  } else {
+   double single = 0;
+   for (int t = 1; t <= processors; t = (t * 2 > processors && t < processors) ? processors : t * 2) {
+    double fps = runner.run(t);
+    if (t == 1) single = fps;
+    report(instances, frames, t, fps);
+    System.out.println("  " + (int) (fps * 100 / single) + "% of one thread, " +
+                       (int) (fps * 100 / (single * t)) + "% efficiency");
+   }
+  }
+ }
+
+ static void report(int instances, int frames, int threads, double fps) {
+  System.out.println(instances + " instances x " + frames + " frames on " + threads +
+                     " threads: " + (int) fps + " fps, " + (int) (fps / 60) + "x real time");
+ }
+
+ /** Ends an instance's run after a set number of frames, without slowing it down */
+ static class FrameLimit implements ThrottlePolicy {
+  int framesLeft;
+
+  FrameLimit(int frames) {
+   framesLeft = frames;
+  }
+
+  public void throttle(Dmgcpu dmgcpu) {
+   if (--framesLeft <= 0) dmgcpu.terminate = true;
+  }
+
+  public boolean presentFrame(Dmgcpu dmgcpu) {
+   return false;
+  }
+
+  public boolean playSound(Dmgcpu dmgcpu) {
+   return false;
+  }
+
+  public void reset() {
+  }
+ }
+
+}
@@ -0,0 +1,738 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.*;
+import java.util.Hashtable;
+
+/** Translates basic blocks of Gameboy code in ROM into Java classes, which are then compiled
+ *  by the JVM's own JIT.  The registers are held in local variables for the whole block, and
+ *  memory reads index the CPU memory map directly.<br>
+ *  <br>
+ *  Only instructions that can't affect anything outside of the CPU registers are translated:
+ *  register operations, ALU operations, reads from memory and jumps.  A block ends at the first
+ *  jump, or before the first instruction that writes to memory, touches the IO registers or the
+ *  stack, or changes the interrupt state, and the interpreter takes over from there.
+ */
+class BlockCompiler {
+
+ /** Longest block that will be translated, in instructions */
+ static final int MAX_BLOCK_LENGTH = 64;
+
+ // JVM opcodes used by the generated code
+
+ static final int ICONST_0 = 0x03;
+ static final int BIPUSH = 0x10;
+ static final int SIPUSH = 0x11;
+ static final int LDC = 0x12;
+ static final int LDC_W = 0x13;
+ static final int ILOAD = 0x15;
+ static final int ALOAD = 0x19;
+ static final int ALOAD_0 = 0x2A;
+ static final int IALOAD = 0x2E;
+ static final int AALOAD = 0x32;
+ static final int BALOAD = 0x33;
+ static final int ISTORE = 0x36;
+ static final int ASTORE = 0x3A;
+ static final int IASTORE = 0x4F;
+ static final int DUP = 0x59;
+ static final int IADD = 0x60;
+ static final int ISHL = 0x78;
+ static final int ISHR = 0x7A;
+ static final int IAND = 0x7E;
+ static final int IOR = 0x80;
+ static final int IFEQ = 0x99;
+ static final int IFNE = 0x9A;
+ static final int GOTO = 0xA7;
+ static final int IRETURN = 0xAC;
+ static final int RETURN = 0xB1;
+ static final int INVOKESPECIAL = 0xB7;
+ static final int INVOKESTATIC = 0xB8;
+ static final int IFNONNULL = 0xC7;
+
+ // Local variables of the generated execute() method.  The registers A - SP are held in
+ // LOCAL_REGS + CompiledBlock.REG_A to LOCAL_REGS + CompiledBlock.REG_SP.
+
+ static final int LOCAL_REGISTERS = 1;
+ static final int LOCAL_PAGES = 2;
+ static final int LOCAL_OFFSETS = 3;
+ static final int LOCAL_REGS = 4;
+ static final int LOCAL_ADDR = 12;
+ static final int LOCAL_PAGE = 13;
+ static final int LOCAL_VALUE = 14;
+ static final int LOCAL_RESULT = 15;
+ static final int LOCAL_NEXT_PC = 16;
+ static final int MAX_LOCALS = 17;
+ static final int MAX_STACK = 8;
+
+ /** Position of the code that stores the registers and returns */
+ static final int EXIT = 3;
+
+ /** Local variable holding each register, indexed by the register number used in opcodes.
+  *  H, L and (HL) are -1 as they need special handling.
+  */
+ static final int[] REGISTER_LOCALS = {
+  LOCAL_REGS + CompiledBlock.REG_B, LOCAL_REGS + CompiledBlock.REG_C,
+  LOCAL_REGS + CompiledBlock.REG_D, LOCAL_REGS + CompiledBlock.REG_E,
+  -1, -1, -1, LOCAL_REGS + CompiledBlock.REG_A
+ };
+
+ static final int A = LOCAL_REGS + CompiledBlock.REG_A;
+ static final int F = LOCAL_REGS + CompiledBlock.REG_F;
+ static final int HL = LOCAL_REGS + CompiledBlock.REG_HL;
+ static final int SP = LOCAL_REGS + CompiledBlock.REG_SP;
+
+ byte[] rom;
+
+ /** Constant pool of the class being generated */
+ byte[] pool = new byte[4096];
+ int poolLength;
+ int poolCount;
+ Hashtable<String,Integer> poolEntries;
+
+ /** Bytecode of the execute() method being generated */
+ byte[] code = new byte[16384];
+ int codeLength;
+
+ /** Address, index within the block, and cycles taken before the instruction being translated.
+  *  Used to leave the block before the instruction if a read can't be done directly.
+  */
+ int instrAddress, instrIndex, instrCycles;
+
+ BlockCompiler(byte[] rom) {
+  this.rom = rom;
+ }
+
+ /** Translates the block starting at the specified address, with the specified ROM bank mapped
+  *  at 0x4000.  The class is defined in the specified class loader.  Returns null if the first
+  *  instruction can't be translated.
+  */
+ public CompiledBlock compile(int bank, int address, BlockClassLoader loader) {
+  poolLength = 0;
+  poolCount = 0;
+  poolEntries = new Hashtable<String,Integer>();
+  codeLength = 0;
+
+  String name = "CompiledBlock_" + JavaBoy.hexByte(bank) + "_" + JavaBoy.hexWord(address);
+
+  int thisClass = classConstant(name);
+  int superClass = classConstant("CompiledBlock");
+  int superInit = methodConstant(superClass, "<init>", "()V");
+
+  // The method starts by jumping over the exit code to load the registers into locals
+  branch(GOTO);
+  op(ALOAD, LOCAL_REGISTERS);
+  pushConstant(CompiledBlock.REG_PC);
+  op(ILOAD, LOCAL_NEXT_PC);
+  op(IASTORE);
+  for (int r = CompiledBlock.REG_A; r <= CompiledBlock.REG_SP; r++) {
+   op(ALOAD, LOCAL_REGISTERS);
+   pushConstant(r);
+   op(ILOAD, LOCAL_REGS + r);
+   op(IASTORE);
+  }
+  op(ILOAD, LOCAL_RESULT);
+  op(IRETURN);
+  label(0);
+  for (int r = CompiledBlock.REG_A; r <= CompiledBlock.REG_SP; r++) {
+   op(ALOAD, LOCAL_REGISTERS);
+   pushConstant(r);
+   op(IALOAD);
+   op(ISTORE, LOCAL_REGS + r);
+  }
+
+  int pc = address;
+  int regionEnd = (address & 0xC000) + 0x3FFE;
+  int romBase = (address >= 0x4000) ? (bank * 0x4000) : 0;
+  int count = 0;
+  int cycles = 0;
+  int maxCycles = 0;
+  boolean ended = false;
+
+  while ((!ended) && (count < MAX_BLOCK_LENGTH) && (pc < regionEnd)) {
+   int romAddr = romBase + (pc & 0x3FFF);
+   int b1 = rom[romAddr] & 0xFF;
+   int b2 = rom[romAddr + 1] & 0xFF;
+   int b3 = rom[romAddr + 2] & 0xFF;
+
+   instrAddress = pc;
+   instrIndex = count;
+   instrCycles = cycles;
+   int instrTime = Dmgcpu.INSTRUCTION_CYCLES[b1];
+   if (b1 == 0xCB) instrTime += Dmgcpu.CB_CYCLES[b2];
+
+   int size;
+   if (isJump(b1)) {
+    size = compileJump(b1, b2, b3, cycles + instrTime, count + 1);
+    if (size == 0) break;
+    ended = true;
+    maxCycles = cycles + instrTime + ((b1 == 0x18) || (b1 == 0xC3) || (b1 == 0xE9) ? 0 : 4);
+   } else {
+    size = compileInstruction(b1, b2, b3);
+    if (size == 0) break;
+   }
+
+   pc += size;
+   count++;
+   cycles += instrTime;
+  }
+
+  if (count == 0) return null;
+
+  if (!ended) {
+   exit(pc, false, count, cycles);
+   maxCycles = cycles;
+  }
+
+  try {
+   int executeName = utf8Constant("execute");
+   int executeDesc = utf8Constant("([I[[B[I)I");
+   int initName = utf8Constant("<init>");
+   int initDesc = utf8Constant("()V");
+   int codeName = utf8Constant("Code");
+
+   ByteArrayOutputStream classBytes = new ByteArrayOutputStream(codeLength + poolLength + 256);
+   DataOutputStream out = new DataOutputStream(classBytes);
+   out.writeInt(0xCAFEBABE);
+   out.writeShort(0);
+   out.writeShort(49);                // Java 5 class files don't need stack map frames
+   out.writeShort(poolCount + 1);
+   out.write(pool, 0, poolLength);
+   out.writeShort(0x0021);            // ACC_PUBLIC | ACC_SUPER
+   out.writeShort(thisClass);
+   out.writeShort(superClass);
+   out.writeShort(0);                 // Interfaces
+   out.writeShort(0);                 // Fields
+   out.writeShort(2);                 // Methods
+
+   out.writeShort(0x0001);            // public CompiledBlock_xx_xxxx() { super(); }
+   out.writeShort(initName);
+   out.writeShort(initDesc);
+   out.writeShort(1);
+   out.writeShort(codeName);
+   out.writeInt(12 + 5);
+   out.writeShort(1);
+   out.writeShort(1);
+   out.writeInt(5);
+   out.writeByte(ALOAD_0);
+   out.writeByte(INVOKESPECIAL);
+   out.writeShort(superInit);
+   out.writeByte(RETURN);
+   out.writeShort(0);
+   out.writeShort(0);
+
+   out.writeShort(0x0001);            // public int execute(int[], byte[][], int[])
+   out.writeShort(executeName);
+   out.writeShort(executeDesc);
+   out.writeShort(1);
+   out.writeShort(codeName);
+   out.writeInt(12 + codeLength);
+   out.writeShort(MAX_STACK);
+   out.writeShort(MAX_LOCALS);
+   out.writeInt(codeLength);
+   out.write(code, 0, codeLength);
+   out.writeShort(0);
+   out.writeShort(0);
+
+   out.writeShort(0);                 // Class attributes
+   out.flush();
+
+   Class<?> blockClass = loader.defineBlock(name, classBytes.toByteArray());
+   CompiledBlock block = (CompiledBlock) blockClass.getDeclaredConstructor().newInstance();
+   block.length = count;
+   block.maxCycles = maxCycles;
+   block.address = address;
+   block.bank = bank;
+//   System.out.println("Compiled " + name + ": " + count + " instructions, " + codeLength + " bytes");
+   return block;
+  } catch (Exception e) {
+   System.out.println("Error compiling block at " + JavaBoy.hexWord(address) + ": " + e);
+   return null;
+  } catch (LinkageError e) {
+   System.out.println("Error compiling block at " + JavaBoy.hexWord(address) + ": " + e);
+   return null;
+  }
+ }
+
+ /** Returns true if the opcode is one of the jumps that ends a block */
+ boolean isJump(int b1) {
+  switch (b1) {
+   case 0x18 : case 0x20 : case 0x28 : case 0x30 : case 0x38 :
+   case 0xC3 : case 0xC2 : case 0xCA : case 0xD2 : case 0xDA :
+   case 0xE9 :
+    return true;
+   default :
+    return false;
+  }
+ }
+
+ /** Generates code for a jump at the end of a block.  Returns the instruction's length */
+ int compileJump(int b1, int b2, int b3, int cycles, int count) {
+  int length = (b1 >= 0xC0) ? 3 : 2;
+  int target;
+  if (b1 == 0xE9) {                    // JP (HL)
+   exit(0, true, count, cycles);
+   return 1;
+  } else if (b1 < 0xC0) {              // JR
+   target = instrAddress + 2 + (byte) b2;
+  } else {                             // JP
+   target = (b3 << 8) + b2;
+  }
+
+  // A jump to itself is an idle loop, and is left to the interpreter to skip over
+  if ((b1 == 0x18) && (target == instrAddress)) return 0;
+
+  if ((b1 == 0x18) || (b1 == 0xC3)) {
+   exit(target, false, count, cycles);
+   return length;
+  }
+
+  int mask = ((b1 & 0x10) == 0) ? CompiledBlock.F_ZERO : CompiledBlock.F_CARRY;
+  op(ILOAD, F);
+  pushConstant(mask);
+  op(IAND);
+  // NZ and NC are taken when the flag is clear, Z and C when it is set
+  int notTaken = branch(((b1 & 0x08) == 0) ? IFNE : IFEQ);
+  exit(target, false, count, cycles + 4);
+  label(notTaken);
+  exit(instrAddress + length, false, count, cycles);
+  return length;
+ }
+
+ /** Generates code for one instruction that doesn't end the block.  Returns the instruction's
+  *  length, or zero if it can't be translated.
+  */
+ int compileInstruction(int b1, int b2, int b3) {
+  switch (b1) {
+   case 0x00 :               // NOP
+       return 1;
+   case 0x01 :               // LD BC, nn
+   case 0x11 :               // LD DE, nn
+       pushConstant(b3);
+       op(ISTORE, REGISTER_LOCALS[b1 >> 3]);
+       pushConstant(b2);
+       op(ISTORE, REGISTER_LOCALS[(b1 >> 3) + 1]);
+       return 3;
+   case 0x21 :               // LD HL, nn
+       pushConstant((b3 << 8) + b2);
+       op(ISTORE, HL);
+       return 3;
+   case 0x31 :               // LD SP, nn
+       pushConstant((b3 << 8) + b2);
+       op(ISTORE, SP);
+       return 3;
+   case 0x03 :               // INC BC
+   case 0x13 :               // INC DE
+   case 0x0B :               // DEC BC
+   case 0x1B :               // DEC DE
+       int high = REGISTER_LOCALS[(b1 >> 3) & 0x06];
+       int low = REGISTER_LOCALS[((b1 >> 3) & 0x06) + 1];
+       op(ILOAD, high);
+       pushConstant(8);
+       op(ISHL);
+       op(ILOAD, low);
+       op(IOR);
+       pushConstant(((b1 & 0x08) == 0) ? 1 : -1);
+       op(IADD);
+       op(DUP);
+       pushConstant(0xFF);
+       op(IAND);
+       op(ISTORE, low);
+       pushConstant(8);
+       op(ISHR);
+       pushConstant(0xFF);
+       op(IAND);
+       op(ISTORE, high);
+       return 1;
+   case 0x23 :               // INC HL
+   case 0x2B :               // DEC HL
+   case 0x33 :               // INC SP
+   case 0x3B :               // DEC SP
+       int pair = (b1 < 0x30) ? HL : SP;
+       op(ILOAD, pair);
+       pushConstant(((b1 & 0x08) == 0) ? 1 : -1);
+       op(IADD);
+       pushConstant(0xFFFF);
+       op(IAND);
+       op(ISTORE, pair);
+       return 1;
+   case 0x04 : case 0x0C : case 0x14 : case 0x1C : case 0x24 : case 0x2C : case 0x3C :     // INC r
+   case 0x05 : case 0x0D : case 0x15 : case 0x1D : case 0x25 : case 0x2D : case 0x3D :     // DEC r
+       loadRegister(b1 >> 3);
+       op(ILOAD, F);
+       callHelper(((b1 & 0x01) == 0) ? "inc" : "dec", "(II)I");
+       storeResult(b1 >> 3);
+       return 1;
+   case 0x06 : case 0x0E : case 0x16 : case 0x1E : case 0x26 : case 0x2E : case 0x3E :     // LD r, nn
+       pushConstant(b2);
+       storeRegister(b1 >> 3);
+       return 2;
+   case 0x07 : case 0x0F : case 0x17 : case 0x1F :     // Rotate A
+   case 0x2F : case 0x37 : case 0x3F :                 // CPL, SCF, CCF
+       pushConstant(b1);
+       op(ILOAD, A);
+       op(ILOAD, F);
+       callHelper("accumulator", "(III)I");
+       storeResult(7);
+       return 1;
+   case 0x0A :               // LD A, (BC)
+   case 0x1A :               // LD A, (DE)
+       op(ILOAD, REGISTER_LOCALS[(b1 >> 3) & 0x06]);
+       pushConstant(8);
+       op(ISHL);
+       op(ILOAD, REGISTER_LOCALS[((b1 >> 3) & 0x06) + 1]);
+       op(IOR);
+       read();
+       op(ISTORE, A);
+       return 1;
+   case 0x2A :               // LDI A, (HL)
+   case 0x3A :               // LDD A, (HL)
+       // HL can't wrap here, as reads from the IO page at 0xFF00 always leave the block
+       op(ILOAD, HL);
+       read();
+       op(ISTORE, A);
+       op(ILOAD, HL);
+       pushConstant((b1 == 0x2A) ? 1 : -1);
+       op(IADD);
+       pushConstant(0xFFFF);
+       op(IAND);
+       op(ISTORE, HL);
+       return 1;
+   case 0xFA :               // LD A, (nnnn)
+       pushConstant((b3 << 8) + b2);
+       read();
+       op(ISTORE, A);
+       return 3;
+   case 0xC6 : case 0xCE : case 0xD6 : case 0xDE :     // ALU A, nn
+   case 0xE6 : case 0xEE : case 0xF6 : case 0xFE :
+       pushConstant(b1);
+       op(ILOAD, A);
+       op(ILOAD, F);
+       pushConstant(b2);
+       callHelper("aluImmediate", "(IIII)I");
+       storeResult(7);
+       return 2;
+   case 0xCB :               // Shift/bit test
+       if ((b2 & 0x07) == 6) {
+        if ((b2 & 0xC0) != 0x40) return 0;       // Only BIT n, (HL) doesn't write to memory
+        op(ILOAD, HL);
+        read();
+        op(ISTORE, LOCAL_VALUE);
+        pushConstant(b2);
+        op(ILOAD, LOCAL_VALUE);
+        op(ILOAD, F);
+        callHelper("cb", "(III)I");
+        pushConstant(8);
+        op(ISHR);
+        op(ISTORE, F);
+       } else {
+        pushConstant(b2);
+        loadRegister(b2 & 0x07);
+        op(ILOAD, F);
+        callHelper("cb", "(III)I");
+        storeResult(b2 & 0x07);
+       }
+       return 2;
+  }
+
+  if ((b1 & 0xC0) == 0x40) {          // LD r, r'
+   int dest = (b1 >> 3) & 0x07;
+   int source = b1 & 0x07;
+   if ((dest == 6) || (b1 == 0x52)) return 0;    // Writes to memory, HALT, and the breakpoint
+   if (source == 6) {
+    op(ILOAD, HL);
+    read();
+   } else {
+    loadRegister(source);
+   }
+   storeRegister(dest);
+   return 1;
+  }
+
+  if ((b1 & 0xC0) == 0x80) {          // ALU A, r
+   int source = b1 & 0x07;
+   if (source == 6) {
+    op(ILOAD, HL);
+    read();
+    op(ISTORE, LOCAL_VALUE);
+   }
+   pushConstant(b1);
+   op(ILOAD, A);
+   op(ILOAD, F);
+   if (source == 6) {
+    op(ILOAD, LOCAL_VALUE);
+   } else {
+    loadRegister(source);
+   }
+   callHelper("alu", "(IIII)I");
+   storeResult(7);
+   return 1;
+  }
+
+  return 0;
+ }
+
+ /** Pushes the value of a register (not (HL)) */
+ void loadRegister(int regNum) {
+  switch (regNum) {
+   case 4 :                  // H
+       op(ILOAD, HL);
+       pushConstant(8);
+       op(ISHR);
+       break;
+   case 5 :                  // L
+       op(ILOAD, HL);
+       pushConstant(0xFF);
+       op(IAND);
+       break;
+   default :
+       op(ILOAD, REGISTER_LOCALS[regNum]);
+       break;
+  }
+ }
+
+ /** Pops a value into a register (not (HL)) */
+ void storeRegister(int regNum) {
+  switch (regNum) {
+   case 4 :                  // H
+       pushConstant(8);
+       op(ISHL);
+       op(ILOAD, HL);
+       pushConstant(0xFF);
+       op(IAND);
+       op(IOR);
+       op(ISTORE, HL);
+       break;
+   case 5 :                  // L
+       op(ILOAD, HL);
+       pushConstant(0xFF00);
+       op(IAND);
+       op(IOR);
+       op(ISTORE, HL);
+       break;
+   default :
+       op(ISTORE, REGISTER_LOCALS[regNum]);
+       break;
+  }
+ }
+
+ /** Pops a helper's result, storing bits 0-7 in a register and bits 8-15 in F */
+ void storeResult(int regNum) {
+  op(DUP);
+  pushConstant(0xFF);
+  op(IAND);
+  storeRegister(regNum);
+  pushConstant(8);
+  op(ISHR);
+  op(ISTORE, F);
+ }
+
+ /** Pops an address and pushes the byte read from it.  If the address is in a page that isn't
+  *  mapped, leaves the block before the current instruction.
+  */
+ void read() {
+  op(ISTORE, LOCAL_ADDR);
+  op(ALOAD, LOCAL_PAGES);
+  op(ILOAD, LOCAL_ADDR);
+  pushConstant(8);
+  op(ISHR);
+  op(AALOAD);
+  op(ASTORE, LOCAL_PAGE);
+  op(ALOAD, LOCAL_PAGE);
+  int mapped = branch(IFNONNULL);
+  exit(instrAddress, false, instrIndex, instrCycles);
+  label(mapped);
+  op(ALOAD, LOCAL_PAGE);
+  op(ILOAD, LOCAL_ADDR);
+  op(ALOAD, LOCAL_OFFSETS);
+  op(ILOAD, LOCAL_ADDR);
+  pushConstant(8);
+  op(ISHR);
+  op(IALOAD);
+  op(IADD);
+  op(BALOAD);
+  pushConstant(0xFF);
+  op(IAND);
+ }
+
+ /** Leaves the block, setting PC to the specified address (or to HL) and returning the number
+  *  of instructions and cycles executed.
+  */
+ void exit(int address, boolean addressInHL, int count, int cycles) {
+  pushConstant((count << 16) | cycles);
+  op(ISTORE, LOCAL_RESULT);
+  if (addressInHL) {
+   op(ILOAD, HL);
+  } else {
+   pushConstant(address);
+  }
+  op(ISTORE, LOCAL_NEXT_PC);
+  op(GOTO);
+  short16(EXIT - (codeLength - 1));
+ }
+
+ void callHelper(String name, String descriptor) {
+  op(INVOKESTATIC);
+  short16(methodConstant(classConstant("CompiledBlock"), name, descriptor));
+ }
+
+ void pushConstant(int value) {
+  if ((value >= -1) && (value <= 5)) {
+   op(ICONST_0 + value);
+  } else if ((value >= -128) && (value <= 127)) {
+   op(BIPUSH, value);
+  } else if ((value >= -32768) && (value <= 32767)) {
+   op(SIPUSH);
+   short16(value);
+  } else {
+   int index = intConstant(value);
+   if (index < 256) {
+    op(LDC, index);
+   } else {
+    op(LDC_W);
+    short16(index);
+   }
+  }
+ }
+
+ void op(int opcode) {
+  code[codeLength++] = (byte) opcode;
+ }
+
+ void op(int opcode, int operand) {
+  code[codeLength++] = (byte) opcode;
+  code[codeLength++] = (byte) operand;
+ }
+
+ void short16(int value) {
+  code[codeLength++] = (byte) (value >> 8);
+  code[codeLength++] = (byte) value;
+ }
+
+ /** Writes a forward branch and returns its position, to be filled in by label() */
+ int branch(int opcode) {
+  int position = codeLength;
+  op(opcode);
+  short16(0);
+  return position;
+ }
+
+ /** Points a forward branch at the current position */
+ void label(int position) {
+  int offset = codeLength - position;
+  code[position + 1] = (byte) (offset >> 8);
+  code[position + 2] = (byte) offset;
+ }
+
+ // Constant pool entries.  Each is only added once, and its index is returned.
+
+ int utf8Constant(String s) {
+  Integer index = poolEntries.get("U" + s);
+  if (index != null) return index.intValue();
+  poolByte(1);
+  poolUtf(s);
+  return addConstant("U" + s);
+ }
+
+ int intConstant(int value) {
+  Integer index = poolEntries.get("I" + value);
+  if (index != null) return index.intValue();
+  poolByte(3);
+  poolInt(value);
+  return addConstant("I" + value);
+ }
+
+ int classConstant(String name) {
+  Integer index = poolEntries.get("C" + name);
+  if (index != null) return index.intValue();
+  int nameIndex = utf8Constant(name);
+  poolByte(7);
+  poolShort(nameIndex);
+  return addConstant("C" + name);
+ }
+
+ int methodConstant(int classIndex, String name, String descriptor) {
+  String key = "M" + classIndex + "." + name + descriptor;
+  Integer index = poolEntries.get(key);
+  if (index != null) return index.intValue();
+  int nameIndex = utf8Constant(name);
+  int descriptorIndex = utf8Constant(descriptor);
+  poolByte(12);                // NameAndType
+  poolShort(nameIndex);
+  poolShort(descriptorIndex);
+  int nameAndType = addConstant("N" + name + descriptor);
+  poolByte(10);                // Methodref
+  poolShort(classIndex);
+  poolShort(nameAndType);
+  return addConstant(key);
+ }
+
+ int addConstant(String key) {
+  poolCount++;
+  poolEntries.put(key, Integer.valueOf(poolCount));
+  return poolCount;
+ }
+
+ // Writing to the constant pool, big endian as in a class file
+
+ void poolByte(int b) {
+  if (poolLength == pool.length) {
+   byte[] bigger = new byte[pool.length * 2];
+   System.arraycopy(pool, 0, bigger, 0, poolLength);
+   pool = bigger;
+  }
+  pool[poolLength++] = (byte) b;
+ }
+
+ void poolShort(int s) {
+  poolByte(s >> 8);
+  poolByte(s);
+ }
+
+ void poolInt(int i) {
+  poolShort(i >> 16);
+  poolShort(i);
+ }
+
+ /** Writes a string in the modified UTF-8 used by class files, preceded by its length */
+ void poolUtf(String s) {
+  int start = poolLength;
+  poolShort(0);
+  for (int r = 0; r < s.length(); r++) {
+   char c = s.charAt(r);
+   if ((c >= 0x0001) && (c <= 0x007F)) {
+    poolByte(c);
+   } else if (c <= 0x07FF) {
+    poolByte(0xC0 | (c >> 6));
+    poolByte(0x80 | (c & 0x3F));
+   } else {
+    poolByte(0xE0 | (c >> 12));
+    poolByte(0x80 | ((c >> 6) & 0x3F));
+    poolByte(0x80 | (c & 0x3F));
+   }
+  }
+  int length = poolLength - start - 2;
+  pool[start] = (byte) (length >> 8);
+  pool[start + 1] = (byte) length;
+ }
+
+}
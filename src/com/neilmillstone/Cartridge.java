@@ -22,23 +22,11 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 */
 
 
-import java.awt.*;
-import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
-import java.applet.*;
+import java.nio.ByteBuffer;
 import java.net.*;
 import java.util.Calendar;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowListener;
-import java.awt.event.ActionListener;
-import java.awt.event.ComponentListener;
-import java.awt.event.ItemListener;
-import java.awt.event.KeyEvent;
-import java.awt.event.WindowEvent;
-import java.awt.event.ActionEvent;
-import java.awt.event.ComponentEvent;
-import java.awt.event.ItemEvent;
 import java.util.StringTokenizer;
 import javax.sound.sampled.*;
 
@@ -107,8 +95,33 @@ class Cartridge {
  /** Contains the complete ROM image of the cartridge */
  public byte[] rom;
 
- /** Contains the RAM on the cartridge */
- public byte[] ram = new byte[0x10000];
+ /** Pre-decoded instructions for each ROM bank, indexed by the address within the bank.  Each
+  *  entry holds the opcode and the two bytes following it, with DECODED set once the entry is
+  *  valid.  A bank's array is allocated the first time code in it is executed.
+  */
+ int[][] decodedBanks;
+ static final int DECODED = 0x01000000;
+
+ /** Contains the RAM on the cartridge.  Allocated by the constructor, as forked cartridges
+  *  share their parent's.
+  */
+ public byte[] ram;
+
+ /** Pages of cartridge RAM that have been written to */
+ DirtyPages ramDirty = new DirtyPages(0x10000);
+
+ /** True while the RAM array is shared with a forked machine.  Neither cartridge writes to a
+  *  shared array; whichever writes first takes a copy of its own.
+  */
+ boolean ramShared = false;
+
+ /** True if this cartridge belongs to a forked machine, and so doesn't own the battery RAM file */
+ boolean forked = false;
+
+ /** False if the battery RAM is never loaded from or saved to a file, for batch and movie runs
+  *  that have to start from the same RAM every time.  Applets don't use the file either.
+  */
+ boolean batteryFile = true;
 
  /** Number of 16Kb ROM banks */
  int numBanks;
@@ -132,7 +145,14 @@ class Cartridge {
 
  boolean mbc1LargeRamMode = false;
  boolean ramEnabled, disposed = false;
- Component applet;
+
+ /** When running as an applet, the ROM is loaded relative to this URL.  Null to load from disk. */
+ URL documentBase;
+
+ /** A problem found while loading the ROM, as a title and two lines of text for the user
+  *  interface to show.  Null if there was nothing to report.
+  */
+ String[] loadMessage;
 
  /** The filename of the currently loaded ROM */
  String romFileName;
@@ -143,17 +163,40 @@ class Cartridge {
 
  boolean needsReset = false;
  
- /** Real time clock registers.  Only used on MBC3 */
+ /** Real time clock registers, as last latched by the game.  Only used on MBC3 */
  int[] RTCReg = new int[5];
- long realTimeStart;
- long lastSecondIncrement;
+
+ /** The real time clock isn't updated as the emulation runs.  Instead, its value is worked out
+  *  from the time source when the game latches it.  rtcBaseSeconds is the value of the clock,
+  *  in seconds, at time rtcBaseTime.
+  */
+ TimeSource timeSource = new SystemTimeSource();
+ long rtcBaseSeconds;
+ long rtcBaseTime;
+ boolean rtcHalted = false;
+ boolean rtcDayCarry = false;
+
+ /** The last value written to the RTC latch register.  Writing 0 then 1 latches the clock. */
+ int rtcLatch = 0xFF;
  String romIntFileName;
 
+ /** The CPU whose memory map points into this cartridge.  Updated whenever the bank mapping changes */
+ Dmgcpu dmgcpu;
+
  /** Create a cartridge object, loading ROM and any associated battery RAM from the cartridge
-  *  filename given.  Loads via the web if JavaBoy is running as an applet */
- public Cartridge(String romFileName, Component a) {
-  applet = a; /* 5823 */
+  *  filename given.  Loads via the web if a document base is given */
+ public Cartridge(String romFileName, URL documentBase) {
+  this(romFileName, documentBase, true);
+ }
+
+ /** Create a cartridge object from the ROM filename given.  If batteryFile is false, the
+  *  battery RAM starts empty and isn't saved when the cartridge is disposed.
+  */
+ public Cartridge(String romFileName, URL documentBase, boolean batteryFile) {
+  this.documentBase = documentBase; /* 5823 */
+  this.batteryFile = batteryFile;
   this.romFileName = romFileName;
+  ram = new byte[0x10000];
   InputStream is = null;
   try {
 /*   if (JavaBoy.runningAsApplet) {
@@ -162,7 +205,7 @@ class Cartridge {
    } else {
     is = new FileInputStream(new File(romFileName));
    }*/
-   is = openRom(romFileName, a);
+   is = openRom(romFileName);
    byte[] firstBank = new byte[0x04000];
 
    int total = 0x04000;
@@ -177,6 +220,7 @@ class Cartridge {
 //   is.close();
 //   is = new FileInputStream(new File(romFileName));
    rom = new byte[0x04000 * numBanks];   // Recreate the ROM array with the correct size
+   decodedBanks = new int[numBanks][];
 
    // Copy first bank into main rom array
    for (int r = 0; r < 0x4000; r++) {
@@ -192,11 +236,11 @@ class Cartridge {
    JavaBoy.debugLog("Loaded ROM '" + romFileName + "'.  " + numBanks + " banks, " + (numBanks * 16) + "Kb.  " + getNumRAMBanks() + " RAM banks.");
    JavaBoy.debugLog("Type: " + cartTypeTable[cartType] + " (" + JavaBoy.hexByte(cartType) + ")");
 
-   if (!verifyChecksum() && (a instanceof Frame)) {
-    new ModalDialog((Frame) a, "Warning", "This cartridge has an invalid checksum.", "It may not execute correctly.");
+   if (!verifyChecksum()) {
+    loadMessage = new String[] {"Warning", "This cartridge has an invalid checksum.", "It may not execute correctly."};
    }
 
-   if (!JavaBoy.runningAsApplet) {
+   if (!JavaBoy.runningAsApplet && batteryFile) {
     loadBatteryRam();
    }
 
@@ -208,14 +252,9 @@ class Cartridge {
 	int minute = rightNow.get(Calendar.MINUTE);
 	int second = rightNow.get(Calendar.SECOND);
 
-	RTCReg[SECONDS] = second;
-	RTCReg[MINUTES] = minute;
-	RTCReg[HOURS] = hour;
-	RTCReg[DAYS_LO] = days & 0x00FF;
-	RTCReg[DAYS_HI] = (days & 0x01FF) >> 8;
-
-	realTimeStart = System.currentTimeMillis();
-	lastSecondIncrement = realTimeStart;
+	rtcBaseSeconds = (((((days & 0x01FF) * 24) + hour) * 60) + minute) * 60 + second;
+	rtcBaseTime = timeSource.currentTimeMillis();
+	latchRtc();
 
 
    cartridgeReady = true;
@@ -223,13 +262,62 @@ class Cartridge {
   } catch (IOException e) {
    System.out.println("Error opening ROM image '" + romFileName + "'!");
   } catch (IndexOutOfBoundsException e) {
-   new ModalDialog((Frame) a, "Error",
+   loadMessage = new String[] {"Error",
      "Loading the ROM image failed.",
-     "The file is not a valid Gameboy ROM.");
+     "The file is not a valid Gameboy ROM."};
   }
 
  }
 
+ /** Create a copy of a cartridge for a forked machine.  The ROM is shared, along with the
+  *  decoded instructions, which only depend on the ROM.  The RAM is shared until one of the
+  *  two cartridges writes to it.
+  */
+ Cartridge(Cartridge parent, Dmgcpu d) {
+  dmgcpu = d;
+  forked = true;
+  batteryFile = parent.batteryFile;
+  documentBase = parent.documentBase;
+  romFileName = parent.romFileName;
+  romIntFileName = parent.romIntFileName;
+  cartName = parent.cartName;
+  rom = parent.rom;
+  decodedBanks = parent.decodedBanks;
+  numBanks = parent.numBanks;
+  cartType = parent.cartType;
+  pageStart = parent.pageStart;
+  currentBank = parent.currentBank;
+  savedBank = parent.savedBank;
+  ramBank = parent.ramBank;
+  ramPageStart = parent.ramPageStart;
+  mbc1LargeRamMode = parent.mbc1LargeRamMode;
+  ramEnabled = parent.ramEnabled;
+  cartridgeReady = parent.cartridgeReady;
+
+  ram = parent.ram;
+  ramShared = true;
+  parent.ramShared = true;
+
+  System.arraycopy(parent.RTCReg, 0, RTCReg, 0, RTCReg.length);
+  if (parent.timeSource instanceof EmulatedTimeSource) {
+   timeSource = new EmulatedTimeSource(d);
+  } else {
+   timeSource = parent.timeSource;
+  }
+  rtcBaseSeconds = parent.rtcBaseSeconds;
+  rtcBaseTime = parent.rtcBaseTime;
+  rtcHalted = parent.rtcHalted;
+  rtcDayCarry = parent.rtcDayCarry;
+  rtcLatch = parent.rtcLatch;
+ }
+
+ /** Takes a private copy of the RAM, which has been shared with a forked machine */
+ final void unshareRam() {
+  ram = ram.clone();
+  ramShared = false;
+  mapRamPages();
+ }
+
  public boolean needsResetEnable() {
 //  System.out.println("Reset !");
   if (needsReset) {
@@ -245,32 +333,65 @@ class Cartridge {
   needsReset = true;
  }
 
- public void update() {
-  // Update the realtime clock from the system time
-  long millisSinceLastUpdate = System.currentTimeMillis() - lastSecondIncrement;
-
-  while (millisSinceLastUpdate > 1000) {
-   millisSinceLastUpdate -= 1000;
-   RTCReg[SECONDS]++;
-   if (RTCReg[SECONDS] == 60) {
-    RTCReg[MINUTES]++;
-	RTCReg[SECONDS] = 0;
-	if (RTCReg[MINUTES] == 60) {
-     RTCReg[HOURS]++;
-	 RTCReg[MINUTES] = 0;
-	 if (RTCReg[HOURS] == 24) {
-	  if (RTCReg[DAYS_LO] == 255) {
-       RTCReg[DAYS_LO] = 0;
-	   RTCReg[DAYS_HI] = 1;
-	  } else {
-       RTCReg[DAYS_LO]++;
-	  }
-	  RTCReg[HOURS] = 0;
-	 }
-	}
-   }
-   lastSecondIncrement = System.currentTimeMillis();
+ /** Returns the current value of the real time clock in seconds */
+ long rtcSeconds() {
+  if (rtcHalted) return rtcBaseSeconds;
+  return rtcBaseSeconds + (timeSource.currentTimeMillis() - rtcBaseTime) / 1000;
+ }
+
+ /** Sets the real time clock to the specified number of seconds, counting from now */
+ void setRtcSeconds(long seconds) {
+  rtcBaseSeconds = seconds;
+  rtcBaseTime = timeSource.currentTimeMillis();
+ }
+
+ /** Changes the clock that the real time clock counts from, keeping its current value */
+ public void setTimeSource(TimeSource t) {
+  long seconds = rtcSeconds();
+  timeSource = t;
+  setRtcSeconds(seconds);
+ }
+
+ /** Copies the current time into the RTC registers */
+ void latchRtc() {
+  long seconds = rtcSeconds();
+  long days = seconds / 86400;
+  RTCReg[SECONDS] = (int) (seconds % 60);
+  RTCReg[MINUTES] = (int) ((seconds / 60) % 60);
+  RTCReg[HOURS] = (int) ((seconds / 3600) % 24);
+  RTCReg[DAYS_LO] = (int) (days & 0x00FF);
+  RTCReg[DAYS_HI] = (int) ((days & 0x0100) >> 8);
+  if (rtcHalted) RTCReg[DAYS_HI] |= 0x40;
+  // The carry stays set once the day counter has overflowed, until the game clears it
+  if (days > 0x01FF) rtcDayCarry = true;
+  if (rtcDayCarry) RTCReg[DAYS_HI] |= 0x80;
+ }
+
+ /** Writes to one of the RTC registers, which sets that part of the clock */
+ void writeRtc(int reg, int data) {
+  long seconds = rtcSeconds();
+  long second = seconds % 60;
+  long minute = (seconds / 60) % 60;
+  long hour = (seconds / 3600) % 24;
+  long days = seconds / 86400;
+  if (days > 0x01FF) rtcDayCarry = true;
+  days &= 0x01FF;
+  switch (reg) {
+   case SECONDS  : second = data;
+                   break;
+   case MINUTES  : minute = data;
+                   break;
+   case HOURS    : hour = data;
+                   break;
+   case DAYS_LO  : days = (days & 0x0100) | data;
+                   break;
+   case DAYS_HI  : days = (days & 0x00FF) | ((data & 0x01) << 8);
+                   rtcHalted = (data & 0x40) != 0;
+                   rtcDayCarry = (data & 0x80) != 0;
+                   break;
   }
+  setRtcSeconds((((days * 24) + hour) * 60 + minute) * 60 + second);
+  RTCReg[reg] = data;
  }
 
  String stripExtention(String filename) {
@@ -283,7 +404,16 @@ class Cartridge {
    }
  }
  
- public InputStream openRom(String romFileName, Component a) {
+ /** Opens a file, from the web if a document base is set, or from disk otherwise */
+ InputStream openStream(String fileName) throws IOException {
+  if (documentBase != null) {
+   return new java.net.URL(documentBase, fileName).openStream();
+  } else {
+   return new FileInputStream(new File(fileName));
+  }
+ }
+
+ public InputStream openRom(String romFileName) {
      byte bFormat;
 	 boolean bFoundGBROM = false;
 	 String romName = "None";
@@ -302,11 +432,7 @@ class Cartridge {
      if (bFormat == bNotCompressed) {
 	   try {
 	    romIntFileName = stripExtention(romFileName);
-	    if (JavaBoy.runningAsApplet) {
-		 return new java.net.URL(((Applet) (a)).getDocumentBase(), romFileName).openStream();
-		} else {
-  	     return new FileInputStream(new File(romFileName));
-		}
+	    return openStream(romFileName);
 	   } catch (Exception e) {
 	    System.out.println("Cant open file");
         return null;
@@ -321,11 +447,7 @@ class Cartridge {
 
 	   try {
 		
-		   if (JavaBoy.runningAsApplet) {
-			zip = new java.util.zip.ZipInputStream(new java.net.URL(((Applet) (a)).getDocumentBase(), romFileName).openStream());
-		   } else {
-			zip = new java.util.zip.ZipInputStream(new java.io.FileInputStream(romFileName));
-		   }
+		   zip = new java.util.zip.ZipInputStream(openStream(romFileName));
 
 
 		   // Check for valid files (GB or GBC ending in filename)
@@ -343,9 +465,7 @@ class Cartridge {
 		   }
 		   // Show an error if no ROM file was found in the ZIP
 		   if (!bFoundGBROM) {
-			 if (JavaBoy.runningAsApplet) {
-				 new ModalDialog((Frame) a, "Error", "No GBx ROM found!", "");
-			 }
+			 loadMessage = new String[] {"Error", "No GBx ROM found!", ""};
 			 System.err.println("No GBx ROM found!");
 			 throw new java.io.IOException("ERROR");
 		   }
@@ -363,11 +483,7 @@ class Cartridge {
        System.out.println("Loading GZIP Compressed ROM");
        romIntFileName = stripExtention(romFileName);
 	   try {
- 	    if (JavaBoy.runningAsApplet) {
-    	    return new java.util.zip.GZIPInputStream(new java.net.URL(((Applet) (a)).getDocumentBase(), romFileName).openStream());
-	    } else {
-	        return new java.util.zip.GZIPInputStream(new java.io.FileInputStream(romFileName));
-	    }
+	    return new java.util.zip.GZIPInputStream(openStream(romFileName));
 	   } catch (Exception e) {
         System.out.println("Can't open file");
 		return null;
@@ -396,6 +512,7 @@ class Cartridge {
      case 0x13 : {	/* MBC3 */
 	  if (ramBank >= 0x04) {
 //	   System.out.println("Reading RTC reg " + ramBank + " is " + RTCReg[ramBank - 0x08]);
+	   if ((ramBank < 0x08) || (ramBank > 0x0C)) return (byte) 0xFF;
 	   return (byte) RTCReg[ramBank - 0x08];
 	  } else {
        return ram[addr - 0xA000 + ramPageStart];
@@ -415,6 +532,43 @@ class Cartridge {
  }
 
 
+ /** Returns the instruction at a CPU address in ROM, as the opcode in bits 0-7 and the
+  *  following two bytes in bits 8-15 and 16-23.  All three bytes must lie in the same
+  *  16Kb bank, i.e. addr & 0x3FFF must be less than 0x3FFE.
+  */
+ public final int decodedInstruction(int addr) {
+  int bank = 0;
+  if (addr >= 0x4000) {
+   bank = currentBank;
+   addr -= 0x4000;
+  }
+
+  int[] decoded = decodedBanks[bank];
+  if (decoded == null) {
+   decoded = new int[0x4000];
+   decodedBanks[bank] = decoded;
+  }
+
+  int instr = decoded[addr];
+  if (instr == 0) {
+   int romAddr = (bank * 0x4000) + addr;
+   instr = DECODED | (rom[romAddr] & 0xFF) | ((rom[romAddr + 1] & 0xFF) << 8) |
+           ((rom[romAddr + 2] & 0xFF) << 16);
+   decoded[addr] = instr;
+  }
+  return instr;
+ }
+
+ /** Discards decoded instructions that include the byte at the specified ROM offset */
+ void invalidateDecoded(int romAddr) {
+  int[] decoded = decodedBanks[romAddr / 0x4000];
+  if (decoded == null) return;
+  int addr = romAddr & 0x3FFF;
+  for (int r = addr - 2; r <= addr; r++) {
+   if (r >= 0) decoded[r] = 0;
+  }
+ }
+
  /** Returns a string summary of the current mapper status */
  public String getMapInfo() {
   String out;
@@ -460,6 +614,69 @@ class Cartridge {
 //  if (bankNo == 0) bankNo = 1;
   currentBank = bankNo;
   pageStart = 0x4000 * bankNo;
+  if (dmgcpu != null) {
+   dmgcpu.mapReadPages(0x4000, 0x4000, rom, pageStart);
+   if (dmgcpu.recompiler != null) {
+    dmgcpu.recompiler.bankMapped(bankNo);
+   }
+  }
+ }
+
+ /** Points the CPU memory map at the currently mapped ROM banks and cartridge RAM.  Pages that
+  *  need mapper logic (the RTC registers, RAM that is write protected) are left unmapped so
+  *  accesses fall through to addressRead() / addressWrite().
+  */
+ public void mapMemory() {
+  if (dmgcpu == null) return;
+  dmgcpu.mapReadPages(0x0000, 0x4000, rom, 0);
+  dmgcpu.mapReadPages(0x4000, 0x4000, rom, pageStart);
+  mapRamPages();
+ }
+
+ /** Maps the current cartridge RAM bank at 0xA000 in the CPU memory map */
+ void mapRamPages() {
+  boolean mbc3 = (cartType >= 0x0F) && (cartType <= 0x13);
+  boolean writable;
+
+  if (mbc3 && (ramBank >= 0x04)) {
+   dmgcpu.mapReadPages(0xA000, 0x2000, null, 0);
+  } else {
+   dmgcpu.mapReadPages(0xA000, 0x2000, ram, ramPageStart);
+  }
+
+  switch (cartType) {
+   case 1 :
+   case 2 :
+   case 3 :
+   case 5 :
+   case 6 :
+    writable = ramEnabled;
+    break;
+   case 0x0F :
+   case 0x10 :
+   case 0x11 :
+   case 0x12 :
+   case 0x13 :
+    writable = (ramBank <= 0x03);
+    break;
+   case 0x19 :
+   case 0x1A :
+   case 0x1B :
+   case 0x1C :
+   case 0x1D :
+   case 0x1E :
+    writable = true;
+    break;
+   default :
+    writable = false;
+    break;
+  }
+
+  if (writable && !ramShared) {
+   dmgcpu.mapWritePages(0xA000, 0x2000, ram, ramPageStart, ramDirty);
+  } else {
+   dmgcpu.mapWritePages(0xA000, 0x2000, null, 0, null);
+  }
  }
 
  public void reset() {
@@ -485,15 +702,21 @@ class Cartridge {
   *  for patching parts of code.  Only used by the debugger.
   */
  public void debuggerAddressWrite(int addr, int data) {
+  int romAddr;
   if (cartType == 0) {
-   rom[addr] = (byte) data;
+   romAddr = addr;
   } else {
    if (addr < 0x4000) {
-    rom[addr] = (byte) data;
+    romAddr = addr;
    } else {
-    rom[pageStart + addr - 0x4000] = (byte) data;
+    romAddr = pageStart + addr - 0x4000;
    }
   }
+  rom[romAddr] = (byte) data;
+  invalidateDecoded(romAddr);
+  if ((dmgcpu != null) && (dmgcpu.recompiler != null)) {
+   dmgcpu.recompiler.invalidate(romAddr);
+  }
  }
 
  /** Writes to an address in CPU address space.  Writes to ROM may cause a mapping change.
@@ -501,6 +724,9 @@ class Cartridge {
  public final void addressWrite(int addr, int data) {
   int ramAddress = 0;
 
+  if (ramShared && ((addr & 0xE000) == 0xA000)) {
+   unshareRam();
+  }
 
   switch (cartType) {
 
@@ -514,6 +740,7 @@ class Cartridge {
      if (ramEnabled) {
       ramAddress = addr - 0xA000 + ramPageStart;
       ram[ramAddress] = (byte) data;
+      ramDirty.mark(ramAddress);
      }
     } if ((addr >= 0x2000) && (addr <= 0x3FFF)) {
      int bankNo = data & 0x1F;
@@ -552,7 +779,10 @@ class Cartridge {
      mapRom(bankNo);
     }
     if ((addr >= 0xA000) && (addr <= 0xBFFF)) {
-     if (ramEnabled) ram[addr - 0xA000 + ramPageStart] = (byte) data;
+     if (ramEnabled) {
+      ram[addr - 0xA000 + ramPageStart] = (byte) data;
+      ramDirty.mark(addr - 0xA000 + ramPageStart);
+     }
     }
 
     break;
@@ -576,14 +806,21 @@ class Cartridge {
       ramPageStart = ramBank * 0x2000;
 	 }
 //     System.out.println("RAM bank " + ramBank + " selected!");
-	} 
+	} else if ((addr <= 0x7FFF) && (addr >= 0x6000)) {
+     // Latch the real time clock
+     if ((rtcLatch == 0) && (data == 1)) {
+      latchRtc();
+     }
+     rtcLatch = data;
+	}
     if ((addr >= 0xA000) && (addr <= 0xBFFF)) {
      // Let the game write to RAM
  	 if (ramBank <= 0x03) {
       ram[addr - 0xA000 + ramPageStart] = (byte) data;
-     } else {
+      ramDirty.mark(addr - 0xA000 + ramPageStart);
+     } else if ((ramBank >= 0x08) && (ramBank <= 0x0C)) {
  	// Write to realtime clock registers
-	 RTCReg[ramBank - 0x08] = data;
+	 writeRtc(ramBank - 0x08, data);
 //     System.out.println("RTC Reg " + ramBank + " = " + data);
 	}
 
@@ -626,12 +863,15 @@ class Cartridge {
     }
     if ((addr >= 0xA000) && (addr <= 0xBFFF)) {
      ram[addr - 0xA000 + ramPageStart] = (byte) data;
+     ramDirty.mark(addr - 0xA000 + ramPageStart);
     }
     break;
 
 
   }
 
+  // Mapper register writes can change RAM banking or write protection
+  if ((addr < 0x8000) && (dmgcpu != null)) mapRamPages();
  }
 
  public int getNumRAMBanks() {
@@ -689,6 +929,7 @@ class Cartridge {
     is.close();
     System.out.println("Read SRAM from '" + saveRamFileName + "'");
    }
+   ramDirty.markAll();
 
 
   } catch (IOException e) {
@@ -752,17 +993,9 @@ class Cartridge {
   }
  }
 
- public void saveBatteryRAMToWeb(URL url, String username, Dmgcpu cpu) {
-  new WebSaveRAM(url, true, this, cpu, username);
- }
-
- public void loadBatteryRAMFromWeb(URL url, String username, Dmgcpu cpu) {
-  new WebSaveRAM(url, false, this, cpu, username);
- }
-
  /** Peforms saving of the battery RAM before the object is discarded */
  public void dispose() {
-  if (!JavaBoy.runningAsApplet) {
+  if (!JavaBoy.runningAsApplet && batteryFile && !forked) {
    saveBatteryRam();
   }
   disposed = true;
@@ -771,14 +1004,18 @@ class Cartridge {
  public boolean verifyChecksum() {
   int checkSum = (JavaBoy.unsign(rom[0x14E]) << 8) + JavaBoy.unsign(rom[0x14F]);
 
+  return checkSum == calculateChecksum();
+ }
+
+ /** Returns the 16-bit sum of every byte in the ROM apart from the checksum itself */
+ public int calculateChecksum() {
   int total = 0;                   // Calculate ROM checksum
   for (int r=0; r < rom.length; r++) {
    if ((r != 0x14E) && (r != 0x14F)) {
     total = (total + JavaBoy.unsign(rom[r])) & 0x0000FFFF;
    }
   }
-
-  return checkSum == total;
+  return total;
  }
 
  /** Gets the cartridge name */
@@ -839,193 +1076,42 @@ class Cartridge {
   }
  }
 
-}
-
-class NoSaveDataException extends java.lang.Exception {
- public NoSaveDataException(String s) {
-  super(s);
- }
-}
-
-class WebSaveRAM implements Runnable, DialogListener {
- Cartridge cart;
- boolean save;
- URL url;
- Dmgcpu cpu;
- String username;
-
- public WebSaveRAM(URL url, boolean save, Cartridge cart, Dmgcpu cpu, String username) {
-  this.url = url;
-  this.save = save;
-  this.cart = cart;
-  this.cpu = cpu;
-  this.username = username;
-
-  if (!cart.canSave()) {
-
-   ModalDialog d = new ModalDialog(null, "Sorry", "This game does not", "have a save facility.");
-
-  } else {
-
-   if (save) {
-    ModalDialog d = new ModalDialog(null, "Confirm", "Are you sure you want to save?", this);
-   } else {
-    ModalDialog d = new ModalDialog(null, "Confirm", "Are you sure you want to load?", this);
-   }
+ /** Writes the mapper registers, cartridge RAM and real time clock to a save state */
+ public void saveState(ByteBuffer buffer) {
+  buffer.putInt(currentBank);
+  buffer.putInt(ramBank);
+  buffer.putInt(ramPageStart);
+  buffer.put((byte) ((mbc1LargeRamMode ? 0x01 : 0) | (ramEnabled ? 0x02 : 0) |
+    (rtcHalted ? 0x04 : 0) | (rtcDayCarry ? 0x08 : 0)));
+  buffer.put(ram);
+  for (int r = 0; r < 5; r++) {
+   buffer.put((byte) RTCReg[r]);
   }
+  buffer.putLong(rtcBaseSeconds);
+  buffer.putLong(rtcBaseTime);
+  buffer.putInt(rtcLatch);
  }
 
- public void yesPressed() {
-  Thread t = new Thread(this);
-  t.start();
- }
-
- public void noPressed() {
-  // Object deleted now
- }
- 
- public void run() {
-  Frame f = new Frame("Please Wait...");
-  f.setSize(200, 120);
-
-  try {
-   if (save) {
-    f.add(new Label("Please wait, saving"), "North");
-    f.add(new Label("game data to web server..."), "Center");   
-    f.show();
-    saveRam();
-    new ModalDialog(null, "Sucess!", "Game data", "Saved ok.");
-   } else {
-    f.add(new Label("Please wait, loading"), "North");
-    f.add(new Label("game data from web server..."), "Center");   
-    f.show();
-    loadRam();
-    new ModalDialog(null, "Success!", "Game data", "loaded ok.");
-   }
-  } catch (NoSaveDataException e) {
-   System.out.println("Error! " + e);
-   new ModalDialog(null, "Error!", "No save data can be found on the server!", e.toString());
-  } catch (Exception e) {
-   System.out.println("Error! " + e);
-   new ModalDialog(null, "Error!", "Load/Save error!  Report to site administrator.", e.toString());
+ /** Reads the cartridge state from a save state.  The CPU's memory map must be rebuilt
+  *  afterwards.
+  */
+ public void loadState(ByteBuffer buffer) {
+  currentBank = buffer.getInt();
+  pageStart = 0x4000 * currentBank;
+  ramBank = buffer.getInt();
+  ramPageStart = buffer.getInt();
+  int flags = buffer.get();
+  mbc1LargeRamMode = (flags & 0x01) != 0;
+  ramEnabled = (flags & 0x02) != 0;
+  rtcHalted = (flags & 0x04) != 0;
+  rtcDayCarry = (flags & 0x08) != 0;
+  if (ramShared) unshareRam();
+  buffer.get(ram);
+  for (int r = 0; r < 5; r++) {
+   RTCReg[r] = buffer.get() & 0xFF;
   }
-  f.hide();
+  rtcBaseSeconds = buffer.getLong();
+  rtcBaseTime = buffer.getLong();
+  rtcLatch = buffer.getInt();
  }
-
- public void saveRam() throws Exception {
-//   if (username == null) throw new Exception("No username provided");
-
-   String params = "";
-   String strUrl = url.toString();
-   int questionPos = strUrl.indexOf("?");
-   if (questionPos != -1) {
-    params = "&" + strUrl.substring(questionPos + 1, strUrl.length());
-   }
-
-   System.out.println("Params: (" + url + ") " + params);
-
-   url = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile() + "?user=" + URLEncoder.encode(username));
-
-   HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-
-   conn.setRequestMethod("POST");
-   conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-   conn.setDoOutput(true);
-   conn.setDoInput(true);
-
-   conn.connect();
-
-   DataOutputStream printout = new DataOutputStream(conn.getOutputStream());
-
-   StringBuffer saveData = new StringBuffer("");
-   byte[] ram = cart.getBatteryRam();
-
-   for (int r = 0; r < cart.getBatteryRamSize(); r++) {
-    saveData.append(JavaBoy.hexByte(JavaBoy.unsign(ram[r])));
-   }
-//   saveData = URLEncoder.encode("Hel\0lo");
-
-   String content = "romname=" + URLEncoder.encode(cart.getRomFilename()) + "&gamename=" + URLEncoder.encode(cart.getCartName()) + "&user=" + URLEncoder.encode(username) + "&datalength=" + (cart.getBatteryRamSize() * 2) + "&data0=" + saveData + params;
-
-   System.out.println(content);
-
-   printout.writeBytes(content);
-   printout.flush ();
-   printout.close ();
- 
-   conn.disconnect();
-
-   DataInputStream input = new DataInputStream (conn.getInputStream());
-   String str;
-   while (null != ((str = input.readLine()))) {
-    System.out.println(str);
-   }
-
-   System.out.println("OK!");
-  }
- 
-  public void loadRam() throws Exception {
-//   if (username == null) throw new Exception("No username provided");
-
-   String params = "";
-   String strUrl = url.toString();
-   int questionPos = strUrl.indexOf("?");
-   if (questionPos != -1) {
-    params = "&" + strUrl.substring(questionPos + 1, strUrl.length());
-   }
-
-   System.out.println("Params: (" + url + ") " + params);
-
-   url = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile() + "?user=" + URLEncoder.encode(username) + params);
-
-   HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-   conn.setRequestMethod("POST");
-   conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-   conn.setDoOutput(true);
-   conn.setDoInput(true);
-
-   conn.connect();
-
-   DataOutputStream printout = new DataOutputStream(conn.getOutputStream());
-
-
-   String content = "gamename=" + URLEncoder.encode(cart.getCartName()) + "&romname=" + URLEncoder.encode(cart.getRomFilename());
-
-//   System.out.println(content);
-
-   printout.writeBytes(content);
-   printout.flush ();
-   printout.close ();
- 
-   conn.disconnect();
-
-   DataInputStream input = new DataInputStream (conn.getInputStream());
-   String str;
-   str = input.readLine();
-
-   // No save
-   if (str.equals("NOSAVERAM")) {
-	throw new NoSaveDataException("");
-   }
-
-   // General error
-   if (str.startsWith("ERROR")) {
-	throw new Exception(str);
-   }
- 
-
-   int pos = 0;
-   try {
-    for (int r = 0; r < cart.getBatteryRamSize(); r++) {
-     String sub = str.substring(r * 2, r * 2 + 2);
-     int val = Integer.valueOf(sub, 16).intValue();
-	 cart.ram[r] = (byte) val;
-    }
-   } catch (Exception e) {
-	throw e;
-   }
-   cpu.reset();
-  }
 }
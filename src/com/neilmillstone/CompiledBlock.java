@@ -0,0 +1,178 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** A basic block of Gameboy code that has been translated into a Java class by the
+ *  BlockCompiler.  Generated classes are defined in their own class loader, so this class,
+ *  its constructor and the helpers that generated code calls must be public.<br>
+ *  <br>
+ *  The helpers perform the flag calculations for the more involved instructions, using the
+ *  same FlagTables as Dmgcpu.execute().  They return the result in bits 0-7 and the new flags
+ *  register in bits 8-15.
+ */
+public abstract class CompiledBlock {
+
+ /** Positions of the registers in the array passed to execute() */
+ static final int REG_A = 0;
+ static final int REG_B = 1;
+ static final int REG_C = 2;
+ static final int REG_D = 3;
+ static final int REG_E = 4;
+ static final int REG_F = 5;
+ static final int REG_HL = 6;
+ static final int REG_SP = 7;
+ static final int REG_PC = 8;
+ static final int NUM_REGISTERS = 9;
+
+ // Flags register bits, as in Dmgcpu
+
+ static final int F_ZERO =      0x80;
+ static final int F_SUBTRACT =  0x40;
+ static final int F_HALFCARRY = 0x20;
+ static final int F_CARRY =     0x10;
+
+ /** Number of instructions in the block */
+ int length;
+
+ /** The most clock cycles that one run through the block can take */
+ int maxCycles;
+
+ /** Address and ROM bank that the block was compiled from */
+ int address, bank;
+
+ public CompiledBlock() {
+ }
+
+ /** Runs the block.  The registers are read from and written back to the registers array,
+  *  and memory reads go through the CPU memory map.  Returns the number of instructions
+  *  executed in bits 16-31 and the number of clock cycles they took in bits 0-15.  If a read
+  *  hits an unmapped page, the block stops before that instruction with PC pointing at it.
+  */
+ public abstract int execute(int[] registers, byte[][] readPages, int[] readOffsets);
+
+ /** ALU operations with a register or (HL) operand, opcodes 0x80 - 0xBF */
+ public static int alu(int opcode, int a, int f, int operand) {
+  switch ((opcode & 0x38) >> 3) {
+   case 0 : // ADD A, r
+       return FlagTables.ADD[(a << 8) | operand];
+   case 1 : // ADC A, r
+       return FlagTables.ADD[((f & F_CARRY) << 12) | (a << 8) | operand];
+   case 2 : // SUB A, r
+       return FlagTables.SUB[(a << 8) | operand];
+   case 3 : // SBC A, r
+       return FlagTables.SUB[((f & F_CARRY) << 12) | (a << 8) | operand];
+   case 4 : // AND A, r
+       a &= operand;
+       break;
+   case 5 : // XOR A, r
+       a ^= operand;
+       break;
+   case 6 : // OR A, r
+       a |= operand;
+       break;
+   case 7 : // CP A, r
+       return a | (FlagTables.SUB[(a << 8) | operand] & 0xFF00);
+  }
+  return a | ((a == 0) ? (F_ZERO << 8) : 0);
+ }
+
+ /** ALU operations with an immediate operand, opcodes 0xC6 - 0xFE.  ADD and ADC do not set
+  *  the zero flag unless the result overflows, and CP only sets Z or C.
+  */
+ public static int aluImmediate(int opcode, int a, int f, int operand) {
+  switch ((opcode & 0x38) >> 3) {
+   case 0 : // ADD A, nn
+   case 1 : // ADC A, nn
+       int index = ((opcode == 0xCE) ? ((f & F_CARRY) << 12) : 0) | (a << 8) | operand;
+       return (index == 0) ? 0 : FlagTables.ADD[index];
+   case 7 : // CP nn
+       return a | (FlagTables.SUB[(a << 8) | operand] & ((F_ZERO | F_CARRY) << 8));
+   default :
+       return alu(opcode, a, f, operand);
+  }
+ }
+
+ /** INC r */
+ public static int inc(int value, int f) {
+  return FlagTables.INC[value] | ((f & F_CARRY) << 8);
+ }
+
+ /** DEC r */
+ public static int dec(int value, int f) {
+  return FlagTables.DEC[value] | ((f & F_CARRY) << 8);
+ }
+
+ /** Rotates and flag operations on the accumulator: RLCA, RRCA, RLA, RRA, CPL, SCF and CCF */
+ public static int accumulator(int opcode, int a, int f) {
+  switch (opcode) {
+   case 0x07 :               // RLC A
+       return FlagTables.SHIFT[FlagTables.RLC | a];
+   case 0x0F :               // RRC A
+       return FlagTables.SHIFT[FlagTables.RRC | a];
+   case 0x17 :               // RL A
+       return FlagTables.SHIFT[FlagTables.RL | ((f & F_CARRY) << 4) | a];
+   case 0x1F :               // RR A
+       return FlagTables.SHIFT[FlagTables.RR | ((f & F_CARRY) << 4) | a];
+   case 0x2F :               // CPL A
+       a = (~a) & 0x00FF;
+       f = (f & (F_CARRY | F_ZERO)) | F_SUBTRACT | F_HALFCARRY;
+       break;
+   case 0x37 :               // SCF
+       f = (f & F_ZERO) | F_CARRY;
+       break;
+   case 0x3F :               // CCF
+       if ((f & F_CARRY) == 0) {
+        f = (f & F_ZERO) | F_CARRY;
+       } else {
+        f = f & F_ZERO;
+       }
+       break;
+  }
+  return a | (f << 8);
+ }
+
+ /** CB prefixed shift, rotate, and bit operations.  The value is returned unchanged by BIT. */
+ public static int cb(int op, int value, int f) {
+  if ((op & 0xC0) == 0) {
+   return FlagTables.SHIFT[((op & 0x38) << 6) | ((f & F_CARRY) << 4) | value];
+  } else {
+   int mask = 0x01 << ((op & 0x38) >> 3);
+   switch (op & 0xC0) {
+    case 0x40 :          // BIT n, r
+     if ((value & mask) != 0) {
+      f = (f & F_CARRY) | F_HALFCARRY;
+     } else {
+      f = (f & F_CARRY) | (F_HALFCARRY + F_ZERO);
+     }
+     break;
+    case 0x80 :          // RES n, r
+     value &= 0xFF - mask;
+     break;
+    case 0xC0 :          // SET n, r
+     value |= mask;
+     break;
+   }
+  }
+  return value | (f << 8);
+ }
+
+}
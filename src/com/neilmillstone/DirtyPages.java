@@ -0,0 +1,95 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Records which 256 byte pages of a memory array have been written to since they were last
+ *  collected.  Every write path into the array marks the page it touches, so that anything
+ *  that needs to copy, save or compare the memory can deal with just the changed pages.
+ */
+class DirtyPages {
+ /** One bit per page */
+ long[] bits;
+
+ /** Number of pages covered */
+ int pages;
+
+ /** Create a tracker for an array of the specified size, with no pages dirty */
+ public DirtyPages(int size) {
+  pages = (size + 0xFF) >> 8;
+  bits = new long[(pages + 63) >> 6];
+ }
+
+ /** Mark the page containing the specified array index as dirty */
+ public final void mark(int index) {
+  int page = index >> 8;
+  bits[page >> 6] |= 1L << page;
+ }
+
+ /** Mark every page as dirty, after the whole array has been changed */
+ public final void markAll() {
+  for (int r = 0; r < pages; r++) {
+   bits[r >> 6] |= 1L << r;
+  }
+ }
+
+ /** Returns true if the specified page has been written to */
+ public final boolean isDirty(int page) {
+  return (bits[page >> 6] & (1L << page)) != 0;
+ }
+
+ /** Returns true if any page has been written to */
+ public final boolean isAnyDirty() {
+  for (int r = 0; r < bits.length; r++) {
+   if (bits[r] != 0) return true;
+  }
+  return false;
+ }
+
+ /** Forget all the dirty pages */
+ public final void clear() {
+  for (int r = 0; r < bits.length; r++) {
+   bits[r] = 0;
+  }
+ }
+
+ /** Copies the numbers of the dirty pages into the supplied array in ascending order, and
+  *  marks them clean.  The array must have room for getPages() entries.  Returns the number
+  *  of pages copied.
+  */
+ public final int collect(int[] out) {
+  int count = 0;
+  for (int r = 0; r < bits.length; r++) {
+   long word = bits[r];
+   bits[r] = 0;
+   while (word != 0) {
+    out[count++] = (r << 6) + Long.numberOfTrailingZeros(word);
+    word &= word - 1;
+   }
+  }
+  return count;
+ }
+
+ /** Returns the number of pages covered */
+ public final int getPages() {
+  return pages;
+ }
+}
@@ -23,22 +23,9 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import java.awt.*;
-import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
-import java.applet.*;
-import java.net.*;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowListener;
-import java.awt.event.ActionListener;
-import java.awt.event.ComponentListener;
-import java.awt.event.ItemListener;
-import java.awt.event.KeyEvent;
-import java.awt.event.WindowEvent;
-import java.awt.event.ActionEvent;
-import java.awt.event.ComponentEvent;
-import java.awt.event.ItemEvent;
+import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
 import javax.sound.sampled.*;
 
@@ -57,7 +44,19 @@ class Dmgcpu {
  /** The number of instructions that have been executed since the
   *  last reset
   */
- int instrCount = 0;
+ long instrCount = 0;
+
+ /** The number of clock cycles that have been executed since the last reset.
+  *  All timing (LCD, timers, DIV) is driven from this counter.
+  */
+ long cycleCount = 0;
+
+ /** Emulated time, in cycles at normal speed, from when the CPU was created up to the point
+  *  where cycleCount was timeBaseCycle.  Moved on whenever the CPU speed changes or cycleCount
+  *  is reset, so that emulated time always runs forwards at the same rate.
+  */
+ long timeBase = 0;
+ long timeBaseCycle = 0;
 
  boolean interruptsEnabled = false;
 
@@ -65,7 +64,7 @@ class Dmgcpu {
  int ieDelay = -1;
 
  boolean timaEnabled = false;
- int instrsPerTima = 6000;
+ int cyclesPerTima = 1024;
 
  /** TRUE when the CPU is currently processing an interrupt */
  boolean inInterrupt = false;
@@ -84,19 +83,94 @@ class Dmgcpu {
  /** Carry flag */
  final short F_CARRY =     0x10;
 
- final short INSTRS_PER_VBLANK = 9000; /* 10000  */
+ /** CPU clock speed in cycles per second, when not in GBC double speed mode */
+ static final int CYCLES_PER_SECOND = 4194304;
+
+ /** The number of clock cycles taken to scan one horizontal line of the screen.
+  *  Multiply by 154 to find out how many cycles per frame.  This doubles in
+  *  GBC double speed mode, as the LCD runs at the same rate.
+  */
+ static final int BASE_CYCLES_PER_LINE = 456;
+ int CYCLES_PER_LINE = BASE_CYCLES_PER_LINE;
+
+ /** DIV increments every 256 cycles (16384Hz at normal speed) */
+ static final int CYCLES_PER_DIV = 256;
+
+ /** DIV isn't updated by an event, but worked out from cycleCount when it is read.  This is
+  *  the number of DIV periods that had passed when it was last reset.
+  */
+ long divBase = 0;
+
+ /** Length of the OAM search (mode 2) and pixel transfer (mode 3) periods at the start of
+  *  each line, in cycles at normal speed.  The rest of the line is hblank (mode 0).
+  */
+ static final int BASE_CYCLES_MODE_2 = 80;
+ static final int BASE_CYCLES_MODE_3 = 172;
 
- /** Used to set the speed of the emulator.  This controls how
-  *  many instructions are executed for each horizontal line scanned
-  *  on the screen.  Multiply by 154 to find out how many instructions
-  *  per frame.
+ /** Clock cycles taken by each opcode.  Conditional jumps, calls and returns are given
+  *  their not-taken time here, and the extra is added when the branch is taken.  The
+  *  time taken by CB prefixed instructions is in CB_CYCLES.
+  */
+ static final byte[] INSTRUCTION_CYCLES = {
+     4, 12,  8,  8,  4,  4,  8,  4, 20,  8,  8,  8,  4,  4,  8,  4,  // 00
+     4, 12,  8,  8,  4,  4,  8,  4, 12,  8,  8,  8,  4,  4,  8,  4,  // 10
+     8, 12,  8,  8,  4,  4,  8,  4,  8,  8,  8,  8,  4,  4,  8,  4,  // 20
+     8, 12,  8,  8, 12, 12, 12,  4,  8,  8,  8,  8,  4,  4,  8,  4,  // 30
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // 40
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // 50
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // 60
+     8,  8,  8,  8,  8,  8,  4,  8,  4,  4,  4,  4,  4,  4,  8,  4,  // 70
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // 80
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // 90
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // A0
+     4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,  // B0
+     8, 12, 12, 16, 12, 16,  8, 16,  8, 16, 12,  0, 12, 24,  8, 16,  // C0
+     8, 12, 12,  4, 12, 16,  8, 16,  8, 16, 12,  4, 12,  4,  8, 16,  // D0
+    12, 12,  8,  4,  4, 16,  8, 16, 16,  4, 16,  4,  4,  4,  8, 16,  // E0
+    12, 12,  8,  4,  4, 16,  8, 16, 12,  8, 16,  4,  4,  4,  8, 16  // F0
+ };
+
+ /** Clock cycles taken by CB prefixed instructions, including the prefix */
+ static final byte[] CB_CYCLES = {
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // 00
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // 10
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // 20
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // 30
+     8,  8,  8,  8,  8,  8, 12,  8,  8,  8,  8,  8,  8,  8, 12,  8,  // 40
+     8,  8,  8,  8,  8,  8, 12,  8,  8,  8,  8,  8,  8,  8, 12,  8,  // 50
+     8,  8,  8,  8,  8,  8, 12,  8,  8,  8,  8,  8,  8,  8, 12,  8,  // 60
+     8,  8,  8,  8,  8,  8, 12,  8,  8,  8,  8,  8,  8,  8, 12,  8,  // 70
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // 80
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // 90
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // A0
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // B0
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // C0
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // D0
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8,  // E0
+     8,  8,  8,  8,  8,  8, 16,  8,  8,  8,  8,  8,  8,  8, 16,  8  // F0
+ };
+
+ // Scheduled events
+
+ /** TIMA increment */
+ static final int EVENT_TIMA = 0;
+ /** End of a scanline.  HDMA transfers and the start of vblank happen on scanline boundaries */
+ static final int EVENT_SCANLINE = 1;
+ static final int NUM_EVENTS = 2;
+
+ /** Event time for an event that is not scheduled */
+ static final long NEVER = Long.MAX_VALUE;
+
+ /** The cycle count at which each event is next due */
+ long[] eventTime = new long[NUM_EVENTS];
+
+ /** The earliest time in eventTime[].  Nothing needs to be done between instructions until
+  *  cycleCount reaches this.
   */
- final short BASE_INSTRS_PER_HBLANK = 60;    /* 60    */
- short INSTRS_PER_HBLANK = BASE_INSTRS_PER_HBLANK;
+ long nextEventTime = 0;
 
- /** Used to set the speed of DIV increments */
- final short BASE_INSTRS_PER_DIV    = 33;    /* 33    */
- short INSTRS_PER_DIV = BASE_INSTRS_PER_DIV;
+ /** Controls the speed of the emulation.  Null to run as fast as possible. */
+ ThrottlePolicy throttlePolicy = new SpeedGovernor(1);
 
  // Constants for interrupts
 
@@ -123,18 +197,29 @@ class Dmgcpu {
      {"RLC", "RRC", "RL", "RR", "SLA", "SRA", "SWAP", "SRL"};
 
  // 8Kb main system RAM appears at 0xC000 in address space
- // 32Kb for GBC
- byte[] mainRam = new byte[0x8000];
+ // 32Kb for GBC.  Allocated by the constructor, as forked machines share their parent's
+ byte[] mainRam;
 
  // 256 bytes at top of RAM are used mainly for registers
  byte[] oam = new byte[0x100];
 
+ /** Pages of main RAM and OAM that have been written to */
+ DirtyPages mainRamDirty = new DirtyPages(0x8000);
+ DirtyPages oamDirty = new DirtyPages(0x100);
+
+ /** True while mainRam is shared with a forked machine.  Its pages are then not mapped for
+  *  writing, and the first write takes a private copy.
+  */
+ boolean mainRamShared = false;
+
  Cartridge cartridge;
  GraphicsChip graphicsChip;
  SoundChip soundChip;
  GameLink gameLink;
  IoHandler ioHandler;
- Component applet;
+
+ /** Where finished frames are sent */
+ FrameSink frameSink;
  boolean terminate;
  boolean running = false;
 
@@ -142,15 +227,65 @@ class Dmgcpu {
  boolean allowGbcFeatures = true;
  int gbcRamBank = 1;
 
+ /** Memory map.  Each 256 byte page of CPU address space points to the array that backs it,
+  *  and an offset which is added to the CPU address to index that array.  Pages with no
+  *  array (IO registers, mapper registers, ...) are handled by the switch statements in
+  *  addressRead() and addressWrite().
+  */
+ byte[][] readPages = new byte[0x100][];
+ int[] readOffsets = new int[0x100];
+ byte[][] writePages = new byte[0x100][];
+ int[] writeOffsets = new int[0x100];
+
+ /** For each page mapped for writing, the pages of its array to mark as dirty */
+ DirtyPages[] writeDirty = new DirtyPages[0x100];
+
+ /** When true, nothing in the emulation depends on the computer's clock, so the same ROM and
+  *  the same inputs always give exactly the same frames and memory.  See setDeterministic().
+  */
+ boolean deterministic = false;
+
+ /** When true, loops that do nothing but poll LY, STAT or IF are fast-forwarded to the point
+  *  where the polled value can next change.
+  */
+ boolean idleLoopSkipping = true;
+
+ /** Total number of cycles that have been skipped over in idle loops */
+ long idleCyclesSkipped = 0;
+
+ /** Longest loop, in bytes, that is checked for being an idle loop */
+ static final int MAX_IDLE_LOOP_LENGTH = 16;
+
+ /** Translates frequently executed blocks of code in ROM into Java classes.  Null when the
+  *  recompiler is disabled.
+  */
+ Recompiler recompiler;
+
+ /** Records a state at the end of each frame so that play can be rewound.  Null when
+  *  rewinding is disabled.
+  */
+ RewindBuffer rewindBuffer;
+
+ /** The input movie being recorded or played back.  Null when there isn't one. */
+ Movie movie;
+
+ /** Registers passed to and from compiled blocks */
+ int[] blockRegisters = new int[CompiledBlock.NUM_REGISTERS];
+
  /** Create a CPU emulator with the supplied cartridge and game link objects.  Both can be set up
-  *  or changed later if needed
+  *  or changed later if needed.  The frame sink supplies the graphics chip, and is passed each
+  *  frame as it is completed.
   */
- public Dmgcpu(Cartridge c, GameLink l, Component a) {
+ public Dmgcpu(Cartridge c, GameLink l, FrameSink s) {
   cartridge = c;
   gameLink = l;
   if (gameLink != null) gameLink.setDmgcpu(this);
-  graphicsChip = new TileBasedGraphicsChip(a, this);
+  frameSink = s;
+  mainRam = new byte[0x8000];
+  graphicsChip = s.createGraphicsChip(this);
   checkEnableGbc();
+  cartridge.dmgcpu = this;
+  mapMemory();
   boolean java1point3 = true;
 
   String version = System.getProperty("java.version");
@@ -162,10 +297,75 @@ class Dmgcpu {
     soundChip = new SoundChip();
   }
   ioHandler = new IoHandler(this);
-  applet = a;
+  rescheduleEvents();
+  setRecompilerEnabled(true);
 //  reset();
  }
 
+ /** Create a copy of a running machine.  See fork(). */
+ private Dmgcpu(Dmgcpu parent) {
+  cartridge = new Cartridge(parent.cartridge, this);
+  frameSink = new HeadlessFrameSink();
+  graphicsChip = frameSink.createGraphicsChip(this);
+  graphicsChip.copyState(parent.graphicsChip);
+  ioHandler = new IoHandler(this, parent.ioHandler);
+  throttlePolicy = null;
+
+  a = parent.a;
+  b = parent.b;
+  c = parent.c;
+  d = parent.d;
+  e = parent.e;
+  f = parent.f;
+  sp = parent.sp;
+  pc = parent.pc;
+  hl = parent.hl;
+  interruptsEnabled = parent.interruptsEnabled;
+  ieDelay = parent.ieDelay;
+  inInterrupt = parent.inInterrupt;
+  timaEnabled = parent.timaEnabled;
+  cyclesPerTima = parent.cyclesPerTima;
+  CYCLES_PER_LINE = parent.CYCLES_PER_LINE;
+  gbcFeatures = parent.gbcFeatures;
+  allowGbcFeatures = parent.allowGbcFeatures;
+  gbcRamBank = parent.gbcRamBank;
+  idleLoopSkipping = parent.idleLoopSkipping;
+  deterministic = parent.deterministic;
+  instrCount = parent.instrCount;
+  cycleCount = parent.cycleCount;
+  timeBase = parent.timeBase;
+  timeBaseCycle = parent.timeBaseCycle;
+  divBase = parent.divBase;
+  System.arraycopy(parent.eventTime, 0, eventTime, 0, NUM_EVENTS);
+  System.arraycopy(parent.oam, 0, oam, 0, oam.length);
+
+  mainRam = parent.mainRam;
+  mainRamShared = true;
+  parent.mainRamShared = true;
+
+  mapMemory();
+  parent.mapMemory();
+  updateNextEvent();
+  if (parent.recompiler != null) setRecompilerEnabled(true);
+ }
+
+ /** Returns an independent copy of this machine, for trying out different inputs from the same
+  *  point.  The copy has no sound, link or display, and runs unthrottled.  The ROM is shared,
+  *  and main RAM, video RAM and cartridge RAM are shared until either machine writes to them,
+  *  so a fork costs little more than a few objects.  Only call this while the machine isn't
+  *  running.
+  */
+ public Dmgcpu fork() {
+  return new Dmgcpu(this);
+ }
+
+ /** Takes a private copy of main RAM, which has been shared with a forked machine */
+ final void unshareMainRam() {
+  mainRam = mainRam.clone();
+  mainRamShared = false;
+  mapMemory();
+ }
+
  /** Clear up memory */
  public void dispose() {
   graphicsChip.dispose();
@@ -184,6 +384,66 @@ class Dmgcpu {
   } while (running);*/
  }
 
+ /** Maps an area of CPU address space for reading.  Addr and length must be multiples of 256.
+  *  Reads from addr will return data[offset].  Passing null as the array unmaps the area.
+  */
+ public final void mapReadPages(int addr, int length, byte[] data, int offset) {
+  for (int page = addr >> 8; page < (addr + length) >> 8; page++) {
+   readPages[page] = data;
+   readOffsets[page] = offset - addr;
+  }
+ }
+
+ /** Maps an area of CPU address space for writing.  Works the same way as mapReadPages(), and
+  *  writes mark their page of data as dirty in the supplied tracker.  Offset must be a multiple
+  *  of 256.
+  */
+ public final void mapWritePages(int addr, int length, byte[] data, int offset, DirtyPages dirty) {
+  for (int page = addr >> 8; page < (addr + length) >> 8; page++) {
+   writePages[page] = data;
+   writeOffsets[page] = offset - addr;
+   writeDirty[page] = dirty;
+  }
+ }
+
+ /** Rebuilds the whole memory map from the current cartridge, VRAM and RAM bank state */
+ public final void mapMemory() {
+  cartridge.mapMemory();
+  mapVideoRam();
+  mapWorkRam();
+  mapReadPages(0xC000, 0x1000, mainRam, 0);
+  mapReadPages(0xE000, 0x1E00, mainRam, 0);
+  if (mainRamShared) {
+   mapWritePages(0xC000, 0x1000, null, 0, null);
+   mapWritePages(0xE000, 0x1E00, null, 0, null);
+  } else {
+   mapWritePages(0xC000, 0x1000, mainRam, 0, mainRamDirty);
+   mapWritePages(0xE000, 0x1E00, mainRam, 0, mainRamDirty);
+  }
+
+  // OAM reads are returned unsigned, so only writes are mapped
+  mapReadPages(0xFE00, 0x100, null, 0);
+  mapWritePages(0xFE00, 0x100, oam, 0, oamDirty);
+  mapReadPages(0xFF00, 0x100, null, 0);
+  mapWritePages(0xFF00, 0x100, null, 0, null);
+ }
+
+ /** Maps the current VRAM bank at 0x8000.  Writes are not mapped as they invalidate tiles */
+ public final void mapVideoRam() {
+  mapReadPages(0x8000, 0x2000, graphicsChip.videoRam, graphicsChip.vidRamStart);
+  mapWritePages(0x8000, 0x2000, null, 0, null);
+ }
+
+ /** Maps the current GBC work RAM bank at 0xD000 */
+ public final void mapWorkRam() {
+  mapReadPages(0xD000, 0x1000, mainRam, gbcRamBank * 0x1000);
+  if (mainRamShared) {
+   mapWritePages(0xD000, 0x1000, null, 0, null);
+  } else {
+   mapWritePages(0xD000, 0x1000, mainRam, gbcRamBank * 0x1000, mainRamDirty);
+  }
+ }
+
  /** Perform a CPU address space read.  This maps all the relevant objects into the correct parts of
   *  the memory
   */
@@ -200,6 +460,11 @@ class Dmgcpu {
 
   addr = addr & 0xFFFF;
 
+  byte[] page = readPages[addr >> 8];
+  if (page != null) {
+   return page[addr + readOffsets[addr >> 8]];
+  }
+
   switch ((addr & 0xF000)) {
    case 0x0000 :
    case 0x1000 :
@@ -261,6 +526,20 @@ class Dmgcpu {
    System.out.println(JavaBoy.hexWord(data) + " written to " + JavaBoy.hexWord(addr) + " at " + JavaBoy.hexWord(pc) + " bank " + cartridge.currentBank);
   }*/
 
+  if ((addr & 0xFFFF0000) == 0) {
+   byte[] page = writePages[addr >> 8];
+   if (page != null) {
+    int index = addr + writeOffsets[addr >> 8];
+    page[index] = (byte) data;
+    writeDirty[addr >> 8].mark(index);
+    return;
+   }
+  }
+
+  if (mainRamShared && (addr >= 0xC000) && (addr < 0xFE00)) {
+   unshareMainRam();
+  }
+
   switch (addr & 0xF000) {
    case 0x0000 :
    case 0x1000 :
@@ -290,25 +569,30 @@ class Dmgcpu {
 
    case 0xC000 :
     mainRam[addr - 0xC000] = (byte) data;
+    mainRamDirty.mark(addr - 0xC000);
     break;
 
    case 0xD000 :
     mainRam[addr - 0xD000 + (gbcRamBank * 0x1000)] = (byte) data;
+    mainRamDirty.mark(addr - 0xD000 + (gbcRamBank * 0x1000));
     break;
 
    case 0xE000 :
     mainRam[addr - 0xE000] = (byte) data;
+    mainRamDirty.mark(addr - 0xE000);
     break;
 
    case 0xF000 :
     if (addr < 0xFE00) {
      try {
       mainRam[addr - 0xE000] = (byte) data;
+      mainRamDirty.mark(addr - 0xE000);
      } catch (ArrayIndexOutOfBoundsException e) {
       System.out.println("Address error: " + addr + " pc = " + JavaBoy.hexWord(pc));
      }
     } else if (addr < 0xFF00) {
      oam[addr - 0xFE00] = (byte) data;
+     oamDirty.mark(0);
     } else {
      ioHandler.ioWrite(addr - 0xFF00, (short) data);
     }
@@ -471,7 +755,11 @@ class Dmgcpu {
   sp = 0xFFFE;
   f = 0xB0;
   gbcRamBank = 1;
+  mapWorkRam();
   instrCount = 0;
+  updateTimeBase();
+  cycleCount = 0;
+  timeBaseCycle = 0;
 
   if (gbcFeatures) {
    a = 0x11;
@@ -479,9 +767,11 @@ class Dmgcpu {
    a = 0x01;
   }
 
+  if (mainRamShared) unshareMainRam();
   for (int r = 0; r < 0x8000; r++) {
    mainRam[r] = 0;
   }
+  mainRamDirty.markAll();
 
   setBC(0x0013);
   setDE(0x00D8);
@@ -489,19 +779,73 @@ class Dmgcpu {
   JavaBoy.debugLog("CPU reset");
 
   ioHandler.reset();
+  rescheduleEvents();
 //  pc = 0x0100;
  }
 
  public void setDoubleSpeedCpu(boolean enabled) {
 
+  updateTimeBase();
   if (enabled) {
-   INSTRS_PER_HBLANK = BASE_INSTRS_PER_HBLANK * 2;
-   INSTRS_PER_DIV = BASE_INSTRS_PER_DIV * 2;
+   CYCLES_PER_LINE = BASE_CYCLES_PER_LINE * 2;
+  } else {
+   CYCLES_PER_LINE = BASE_CYCLES_PER_LINE;
+  }
+  if (throttlePolicy != null) throttlePolicy.reset();
+  rescheduleEvents();
+ }
+
+ /** Brings timeBase up to the current cycle */
+ final void updateTimeBase() {
+  timeBase += (cycleCount - timeBaseCycle) / (CYCLES_PER_LINE / BASE_CYCLES_PER_LINE);
+  timeBaseCycle = cycleCount;
+ }
+
+ /** Returns the time that has passed in the emulation since the CPU was created, in
+  *  milliseconds.  This doesn't change with the GBC's double speed mode.
+  */
+ public final long getEmulatedMillis() {
+  long cycles = timeBase + (cycleCount - timeBaseCycle) / (CYCLES_PER_LINE / BASE_CYCLES_PER_LINE);
+  return cycles * 1000 / CYCLES_PER_SECOND;
+ }
+
+ /** Returns the first multiple of period that is not before the current cycle.  Periodic
+  *  events are kept on multiples of their period so that they stay in step with each other.
+  */
+ final long nextMultiple(int period) {
+  return (((cycleCount - 1) / period) + 1) * period;
+ }
+
+ /** Recalculates when each periodic event is next due.  Called when the timer or CPU speed
+  *  settings change.
+  */
+ public final void rescheduleEvents() {
+  if (timaEnabled) {
+   eventTime[EVENT_TIMA] = nextMultiple(cyclesPerTima);
   } else {
-   INSTRS_PER_HBLANK = BASE_INSTRS_PER_HBLANK;
-   INSTRS_PER_DIV = BASE_INSTRS_PER_DIV;
+   eventTime[EVENT_TIMA] = NEVER;
   }
+  eventTime[EVENT_SCANLINE] = nextMultiple(CYCLES_PER_LINE);
+  updateNextEvent();
+ }
+
+ /** Returns the current value of the DIV register */
+ public final int readDiv() {
+  return (int) ((cycleCount / CYCLES_PER_DIV) - divBase) & 0xFF;
+ }
 
+ /** Sets DIV to zero, as happens when it is written to */
+ public final void resetDiv() {
+  divBase = cycleCount / CYCLES_PER_DIV;
+ }
+
+ /** Finds the earliest scheduled event */
+ final void updateNextEvent() {
+  long next = NEVER;
+  for (int r = 0; r < NUM_EVENTS; r++) {
+   if (eventTime[r] < next) next = eventTime[r];
+  }
+  nextEventTime = next;
  }
 
  /** If an interrupt is enabled an the interrupt register shows that it has occured, jump to
@@ -540,6 +884,7 @@ class Dmgcpu {
 
    ioHandler.registers[0x0F] = (byte) intFlags;
    inInterrupt = true;
+   cycleCount += 20;
   }
  }
 
@@ -549,14 +894,24 @@ class Dmgcpu {
 //  System.out.println("Triggered:" + intr);
  }
 
+ /** Called when a button is pressed or released.  While a movie is recording or playing, the
+  *  movie raises the joypad interrupt itself, between frames.
+  */
+ public final void joypadChanged() {
+  if (movie == null) triggerInterruptIfEnabled(INT_P10);
+ }
+
  public final void triggerInterruptIfEnabled(int intr) {
   if ((ioHandler.registers[0xFF] & (short) (intr)) != 0) ioHandler.registers[0x0F] |= intr;
 //  System.out.println("Triggered:" + intr);
  }
 
- /** Check for interrupts that need to be initiated */
+ /** Run any events that are due, and check for interrupts that need to be initiated.
+  *  Only needs to be called once cycleCount has reached nextEventTime.
+  */
  public final void initiateInterrupts() {
-   if (timaEnabled && ((instrCount % instrsPerTima) == 0)) {
+   if (cycleCount >= eventTime[EVENT_TIMA]) {
+    eventTime[EVENT_TIMA] += cyclesPerTima;
     if (JavaBoy.unsign(ioHandler.registers[05]) == 0) {
      ioHandler.registers[05] = ioHandler.registers[06]; // Set TIMA modulo
      if ((ioHandler.registers[0xFF] & INT_TIMA) != 0)
@@ -565,11 +920,8 @@ class Dmgcpu {
     ioHandler.registers[05]++;
    }
 
-   if ((instrCount % INSTRS_PER_DIV) == 0) {
-    ioHandler.registers[04]++;
-   }
-
-   if ((instrCount % INSTRS_PER_HBLANK) == 0) {
+   if (cycleCount >= eventTime[EVENT_SCANLINE]) {
+    eventTime[EVENT_SCANLINE] += CYCLES_PER_LINE;
 
 
     // LCY Coincidence
@@ -611,18 +963,8 @@ class Dmgcpu {
 	  }
      }
 
-     boolean speedThrottle = true;
-     if (!JavaBoy.runningAsApplet) {
-      GameBoyScreen g = (GameBoyScreen) applet;
-      speedThrottle = g.viewSpeedThrottle.getState();
-     }
-     if ((speedThrottle) && (graphicsChip.frameWaitTime >= 0)) {
-//      System.out.println("Waiting for " + graphicsChip.frameWaitTime + "ms.");
-      try {
-       java.lang.Thread.sleep(graphicsChip.frameWaitTime);
-      } catch (InterruptedException e) {
-       // Nothing.
-      }
+     if (throttlePolicy != null) {
+      throttlePolicy.throttle(this);
      }
 
      
@@ -637,25 +979,111 @@ class Dmgcpu {
 //     System.out.println("VBlank");
 
      ioHandler.registers[0x44] = 0;
-     if (soundChip != null) soundChip.outputSound();
-     graphicsChip.frameDone = false;
-	 if (JavaBoy.runningAsApplet) {
-      ((JavaBoy) (applet)).drawNextFrame();
-	 } else {
-      ((GameBoyScreen) (applet)).repaint();
-	 }
-     try {
-      while (!graphicsChip.frameDone) {
-       java.lang.Thread.sleep(1);
-      }
-     } catch (InterruptedException e) {
-      // Nothing.
+     if ((soundChip != null) && ((throttlePolicy == null) || throttlePolicy.playSound(this))) {
+      soundChip.outputSound();
+     }
+     if ((throttlePolicy == null) || throttlePolicy.presentFrame(this)) {
+      frameSink.frameReady(graphicsChip);
      }
-      
+     if (rewindBuffer != null) rewindBuffer.capture(this);
+     if (movie != null) movie.frame(this);
 
 //     System.out.println("LCDC reset");
     }
    }
+
+   updateNextEvent();
+ }
+
+ /** Returns the number of CPU cycles in a second at the current CPU speed */
+ final int getCyclesPerSecond() {
+  return CYCLES_PER_SECOND * (CYCLES_PER_LINE / BASE_CYCLES_PER_LINE);
+ }
+
+ /** Writes the CPU registers, timers, event times and RAM to a save state */
+ public void saveState(ByteBuffer buffer) {
+  buffer.put((byte) a);
+  buffer.put((byte) b);
+  buffer.put((byte) c);
+  buffer.put((byte) d);
+  buffer.put((byte) e);
+  buffer.put((byte) f);
+  buffer.putShort((short) sp);
+  buffer.putShort((short) pc);
+  buffer.putShort((short) hl);
+  buffer.put((byte) ((interruptsEnabled ? 0x01 : 0) | (inInterrupt ? 0x02 : 0) |
+    (timaEnabled ? 0x04 : 0) | (gbcFeatures ? 0x08 : 0)));
+  buffer.putInt(ieDelay);
+  buffer.putInt(cyclesPerTima);
+  buffer.putInt(CYCLES_PER_LINE);
+  buffer.putInt(gbcRamBank);
+  buffer.putLong(instrCount);
+  buffer.putLong(cycleCount);
+  buffer.putLong(timeBase);
+  buffer.putLong(timeBaseCycle);
+  buffer.putLong(divBase);
+  for (int r = 0; r < NUM_EVENTS; r++) {
+   buffer.putLong(eventTime[r]);
+  }
+  buffer.put(mainRam);
+  buffer.put(oam);
+ }
+
+ /** Reads the CPU state from a save state.  stateLoaded() must be called once the rest of
+  *  the machine has been loaded.
+  */
+ public void loadState(ByteBuffer buffer) {
+  a = buffer.get() & 0xFF;
+  b = buffer.get() & 0xFF;
+  c = buffer.get() & 0xFF;
+  d = buffer.get() & 0xFF;
+  e = buffer.get() & 0xFF;
+  f = buffer.get() & 0xFF;
+  sp = buffer.getShort() & 0xFFFF;
+  pc = buffer.getShort() & 0xFFFF;
+  hl = buffer.getShort() & 0xFFFF;
+  int flags = buffer.get();
+  interruptsEnabled = (flags & 0x01) != 0;
+  inInterrupt = (flags & 0x02) != 0;
+  timaEnabled = (flags & 0x04) != 0;
+  gbcFeatures = (flags & 0x08) != 0;
+  ieDelay = buffer.getInt();
+  cyclesPerTima = buffer.getInt();
+  CYCLES_PER_LINE = buffer.getInt();
+  gbcRamBank = buffer.getInt();
+  instrCount = buffer.getLong();
+  cycleCount = buffer.getLong();
+  timeBase = buffer.getLong();
+  timeBaseCycle = buffer.getLong();
+  divBase = buffer.getLong();
+  for (int r = 0; r < NUM_EVENTS; r++) {
+   eventTime[r] = buffer.getLong();
+  }
+  if (mainRamShared) unshareMainRam();
+  buffer.get(mainRam);
+  buffer.get(oam);
+ }
+
+ /** Brings everything that is worked out from the machine state up to date after a save
+  *  state has been loaded: the memory map, the dirty pages, the next event time and the speed
+  *  throttle.
+  */
+ public void stateLoaded() {
+  cartridge.mapRom(cartridge.currentBank);
+  mapMemory();
+  markAllDirty();
+  updateNextEvent();
+  if (throttlePolicy != null) throttlePolicy.reset();
+ }
+
+ /** Marks every page of main RAM, OAM, VRAM and cartridge RAM as dirty, for when they have all
+  *  been replaced at once.
+  */
+ public final void markAllDirty() {
+  mainRamDirty.markAll();
+  oamDirty.markAll();
+  graphicsChip.videoRamDirty.markAll();
+  cartridge.ramDirty.markAll();
  }
 
  /** Execute the specified number of Gameboy instructions.  Use '-1' to execute forever */
@@ -675,12 +1103,49 @@ class Dmgcpu {
     System.out.print(" " + JavaBoy.hexWord(pc) + ":" + JavaBoy.hexByte(cartridge.currentBank));
    }*/
 //   System.out.print(" " + JavaBoy.hexWord(pc) + ":" + JavaBoy.hexByte(cartridge.currentBank));
+
+   // Run a compiled block if there is one.  Blocks are only used when no timer or LCD event
+   // can fall inside them and no EI is pending, and HL must be a 16-bit value as the
+   // interpreter lets it overflow.
+   if ((recompiler != null) && (ieDelay == -1) && ((pc & 0xFFFF8000) == 0) && ((hl & 0xFFFF0000) == 0)) {
+    CompiledBlock block = recompiler.getBlock(pc);
+    if ((block != null) && (cycleCount + block.maxCycles < nextEventTime) &&
+        ((numInstr == -1) || (numInstr - r >= block.length))) {
+     int result = executeBlock(block);
+     int executed = result >>> 16;
+     if (executed != 0) {
+      instrCount += executed;
+      cycleCount += result & 0xFFFF;
+      r += executed - 1;
+
+      if (interruptsEnabled) {
+       checkInterrupts();
+      }
+      if (cycleCount >= nextEventTime) {
+       initiateInterrupts();
+      }
+      continue;
+     }
+    }
+   }
+
    instrCount++;
 
-   b1 = JavaBoy.unsign(addressRead(pc));
-   offset = addressRead(pc + 1);
-   b3 = JavaBoy.unsign(addressRead(pc + 2));
-   b2 = JavaBoy.unsign((short) offset);
+   if (((pc & 0xFFFF8000) == 0) && ((pc & 0x3FFF) < 0x3FFE)) {
+    // Code in ROM is fetched from the cartridge's decoded instruction cache
+    int instr = cartridge.decodedInstruction(pc);
+    b1 = instr & 0xFF;
+    b2 = (instr >> 8) & 0xFF;
+    b3 = (instr >> 16) & 0xFF;
+    offset = (byte) b2;
+   } else {
+    b1 = JavaBoy.unsign(addressRead(pc));
+    offset = addressRead(pc + 1);
+    b3 = JavaBoy.unsign(addressRead(pc + 2));
+    b2 = JavaBoy.unsign((short) offset);
+   }
+
+   cycleCount += INSTRUCTION_CYCLES[b1];
 
    switch (b1) {
     case 0x00 :               // NOP
@@ -708,35 +1173,15 @@ class Dmgcpu {
         break;
     case 0x04 :               // INC B
         pc++;
-        f &= F_CARRY;
-        switch (b) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    b = 0x00;
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    b = 0x10;
-                    break;
-         default:   b++;
-                    break;
-        }
+        dat = FlagTables.INC[b];
+        b = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x05 :               // DEC B
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch (b) {
-         case 0x00: f |= F_HALFCARRY;
-                    b = 0xFF;
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    b = 0x0F;
-                    break;
-         case 0x01: f |= F_ZERO;
-                    b = 0x00;
-                    break;
-         default:   b--;
-                    break;
-        }
+        dat = FlagTables.DEC[b];
+        b = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x06 :               // LD B, nn
         pc += 2;
@@ -744,18 +1189,9 @@ class Dmgcpu {
         break;
     case 0x07 :               // RLC A
         pc++;
-        f = 0;
-
-        a <<= 1;
-
-        if ((a & 0x0100) != 0) {
-         f |= F_CARRY;
-         a |= 1;
-         a &= 0xFF;
-        }
-        if (a == 0) {
-         f |= F_ZERO;
-        }
+        dat = FlagTables.SHIFT[FlagTables.RLC | a];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0x08 :               // LD (nnnn), SP   /* **** May be wrong! **** */
         pc+=3;
@@ -789,35 +1225,15 @@ class Dmgcpu {
         break;
     case 0x0C :               // INC C
         pc++;
-        f &= F_CARRY;
-        switch (c) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    c = 0x00;
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    c = 0x10;
-                    break;
-         default:   c++;
-                    break;
-        }
+        dat = FlagTables.INC[c];
+        c = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x0D :               // DEC C
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch (c) {
-         case 0x00: f |= F_HALFCARRY;
-                    c = 0xFF;
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    c = 0x0F;
-                    break;
-         case 0x01: f |= F_ZERO;
-                    c = 0x00;
-                    break;
-         default:   c--;
-                    break;
-        }
+        dat = FlagTables.DEC[c];
+        c = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x0E :               // LD C, nn
         pc+=2;
@@ -825,18 +1241,9 @@ class Dmgcpu {
         break;        
     case 0x0F :               // RRC A
         pc++;
-        if ((a & 0x01) == 0x01) {
-         f = F_CARRY;
-        } else {
-         f = 0;
-        }
-        a >>= 1;
-        if ((f & F_CARRY) == F_CARRY) {
-         a |= 0x80;
-        }
-        if (a == 0) {
-         f |= F_ZERO;
-        }
+        dat = FlagTables.SHIFT[FlagTables.RRC | a];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0x10 :               // STOP
         pc+=2;
@@ -881,35 +1288,15 @@ class Dmgcpu {
         break;
     case 0x14 :               // INC D
         pc++;
-        f &= F_CARRY;
-        switch (d) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    d = 0x00;
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    d = 0x10;
-                    break;
-         default:   d++;
-                    break;
-        }
+        dat = FlagTables.INC[d];
+        d = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x15 :               // DEC D
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch (d) {
-         case 0x00: f |= F_HALFCARRY;
-                    d = 0xFF;
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    d = 0x0F;
-                    break;
-         case 0x01: f |= F_ZERO;
-                    d = 0x00;
-                    break;
-         default:   d--;
-                    break;
-        }
+        dat = FlagTables.DEC[d];
+        d = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x16 :               // LD D, nn
         pc += 2;
@@ -917,24 +1304,15 @@ class Dmgcpu {
         break;
     case 0x17 :               // RL A
         pc++;
-        if ((a & 0x80) == 0x80) {
-         newf = F_CARRY;
-        } else {
-         newf = 0;
-        }
-        a <<= 1;
-          
-        if ((f & F_CARRY) == F_CARRY) {
-         a |= 1;
-        }
-
-        a &= 0xFF;
-        if (a == 0) {
-         newf |= F_ZERO;
-        }
-        f = newf;
+        dat = FlagTables.SHIFT[FlagTables.RL | ((f & F_CARRY) << 4) | a];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0x18 :               // JR nn
+        if ((offset == -2) && idleLoopSkipping && (ieDelay == -1)) {
+         // Jump to self, waiting for an interrupt
+         r += skipIdleLoop(b1, (numInstr == -1) ? Integer.MAX_VALUE : numInstr - r - 1);
+        }
         pc += 2 + offset;
         break;
     case 0x19 :               // ADD HL, DE
@@ -964,35 +1342,15 @@ class Dmgcpu {
         break;
     case 0x1C :               // INC E
         pc++;
-        f &= F_CARRY;
-        switch (e) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    e = 0x00;
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    e = 0x10;
-                    break;
-         default:   e++;
-                    break;
-        }
+        dat = FlagTables.INC[e];
+        e = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x1D :               // DEC E
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch (e) {
-         case 0x00: f |= F_HALFCARRY;
-                    e = 0xFF;
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    e = 0x0F;
-                    break;
-         case 0x01: f |= F_ZERO;
-                    e = 0x00;
-                    break;
-         default:   e--;
-                    break;
-        }
+        dat = FlagTables.DEC[e];
+        e = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x1E :               // LD E, nn
         pc+=2;
@@ -1000,24 +1358,13 @@ class Dmgcpu {
         break;
     case 0x1F :               // RR A
         pc++;
-        if ((a & 0x01) == 0x01) {
-         newf = F_CARRY;
-        } else {
-         newf = 0;
-        }
-        a >>= 1;
-  
-        if ((f & F_CARRY) == F_CARRY) {
-         a |= 0x80;
-        }
-      
-        if (a == 0) {
-         newf |= F_ZERO;
-        }
-        f = newf;
+        dat = FlagTables.SHIFT[FlagTables.RR | ((f & F_CARRY) << 4) | a];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0x20 :               // JR NZ, nn
         if ((f & 0x80) == 0x00) {
+         cycleCount += 4;
          pc += 2 + offset;
         } else {
          pc += 2;
@@ -1038,35 +1385,15 @@ class Dmgcpu {
         break;
     case 0x24 :               // INC H         ** May be wrong **
         pc++;
-        f &= F_CARRY;
-        switch ((hl & 0xFF00) >> 8) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    hl = (hl & 0x00FF);
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    hl = (hl & 0x00FF) | 0x10;
-                    break;
-         default:   hl = (hl + 0x0100);
-                    break;
-        }
+        dat = FlagTables.INC[(hl >> 8) & 0xFF];
+        hl = (hl & 0x00FF) | ((dat & 0xFF) << 8);
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x25 :               // DEC H           ** May be wrong **
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch ((hl & 0xFF00) >> 8) {
-         case 0x00: f |= F_HALFCARRY;
-                    hl = (hl & 0x00FF) | (0xFF00);
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    hl = (hl & 0x00FF) | (0x0F00);
-                    break;
-         case 0x01: f |= F_ZERO;
-                    hl = (hl & 0x00FF);
-                    break;
-         default:   hl = (hl & 0x00FF) | ((hl & 0xFF00) - 0x0100);
-                    break;
-        }
+        dat = FlagTables.DEC[(hl >> 8) & 0xFF];
+        hl = (hl & 0x00FF) | ((dat & 0xFF) << 8);
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x26 :               // LD H, nn
         pc+=2;
@@ -1170,6 +1497,7 @@ class Dmgcpu {
         break;
     case 0x28 :               // JR Z, nn
         if ((f & F_ZERO) == F_ZERO) {
+         cycleCount += 4;
          pc += 2 + offset;
         } else {
          pc += 2;
@@ -1200,35 +1528,15 @@ class Dmgcpu {
         break;
     case 0x2C :               // INC L
         pc++;
-        f &= F_CARRY;
-        switch (hl & 0x00FF) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    hl = hl & 0xFF00;
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    hl++;
-                    break;
-         default:   hl++;
-                    break;
-        }
+        dat = FlagTables.INC[hl & 0x00FF];
+        hl = (hl & 0xFF00) | (dat & 0xFF);
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x2D :               // DEC L
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch (hl & 0x00FF) {
-         case 0x00: f |= F_HALFCARRY;
-                    hl = (hl & 0xFF00) | 0x00FF;
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    hl = (hl & 0xFF00) | 0x000F;
-                    break;
-         case 0x01: f |= F_ZERO;
-                    hl = (hl & 0xFF00);
-                    break;
-         default:   hl = (hl & 0xFF00) | ((hl & 0x00FF) - 1);
-                    break;
-        }
+        dat = FlagTables.DEC[hl & 0x00FF];
+        hl = (hl & 0xFF00) | (dat & 0xFF);
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x2E :               // LD L, nn
         pc+=2;
@@ -1250,6 +1558,7 @@ class Dmgcpu {
         break;
     case 0x30 :               // JR NC, nn
         if ((f & F_CARRY) == 0) {
+         cycleCount += 4;
          pc += 2 + offset;
         } else {
          pc += 2;
@@ -1270,37 +1579,15 @@ class Dmgcpu {
         break;
     case 0x34 :               // INC (HL)
         pc++;
-        f &= F_CARRY;
-        dat = JavaBoy.unsign(addressRead(hl));
-        switch (dat) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    addressWrite(hl, 0x00);
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    addressWrite(hl, 0x10);
-                    break;
-         default:   addressWrite(hl, dat + 1);
-                    break;
-        }
+        dat = FlagTables.INC[JavaBoy.unsign(addressRead(hl))];
+        addressWrite(hl, dat & 0xFF);
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x35 :               // DEC (HL)
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        dat = JavaBoy.unsign(addressRead(hl));
-        switch (dat) {
-         case 0x00: f |= F_HALFCARRY;
-                    addressWrite(hl, 0xFF);
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    addressWrite(hl, 0x0F);
-                    break;
-         case 0x01: f |= F_ZERO;
-                    addressWrite(hl, 0x00);
-                    break;
-         default:   addressWrite(hl, dat - 1);
-                    break;
-        }
+        dat = FlagTables.DEC[JavaBoy.unsign(addressRead(hl))];
+        addressWrite(hl, dat & 0xFF);
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x36 :               // LD (HL), nn
         pc += 2;
@@ -1313,6 +1600,7 @@ class Dmgcpu {
         break;
     case 0x38 :               // JR C, nn
         if ((f & F_CARRY) == F_CARRY) {
+         cycleCount += 4;
          pc += 2 + offset;
         } else {
          pc += 2;
@@ -1339,35 +1627,15 @@ class Dmgcpu {
         break;
     case 0x3C :               // INC A
         pc++;
-        f &= F_CARRY;
-        switch (a) {
-         case 0xFF: f |= F_HALFCARRY + F_ZERO;
-                    a = 0x00;
-                    break;
-         case 0x0F: f |= F_HALFCARRY;
-                    a = 0x10;
-                    break;
-         default:   a++;
-                    break;
-        }
+        dat = FlagTables.INC[a];
+        a = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x3D :               // DEC A
         pc++;
-        f &= F_CARRY;
-        f |= F_SUBTRACT;
-        switch (a) {
-         case 0x00: f |= F_HALFCARRY;
-                    a = 0xFF;
-                    break;
-         case 0x10: f |= F_HALFCARRY;
-                    a = 0x0F;
-                    break;
-         case 0x01: f |= F_ZERO;
-                    a = 0x00;
-                    break;
-         default:   a--;
-                    break;
-        }
+        dat = FlagTables.DEC[a];
+        a = dat & 0xFF;
+        f = (f & F_CARRY) | (dat >> 8);
         break;
     case 0x3E :               // LD A, nn
         pc += 2;
@@ -1394,9 +1662,17 @@ class Dmgcpu {
     case 0x76 :               // HALT
  	    interruptsEnabled = true;
 //		System.out.println("Halted, pc = " + JavaBoy.hexWord(pc));
+        // Nothing can raise an interrupt until the next event, so skip straight to it,
+        // counting the idle time in the same 4 cycle steps as an instruction
         while (ioHandler.registers[0x0F] == 0) {
+         if (cycleCount < nextEventTime) {
+          long steps = (nextEventTime - cycleCount + 3) / 4;
+          instrCount += steps;
+          cycleCount += steps * 4;
+         }
          initiateInterrupts();
          instrCount++;
+         cycleCount += 4;
         }
 
 //		System.out.println("intrcount: " + instrCount + " IE: " + JavaBoy.hexByte(ioHandler.registers[0xFF]));
@@ -1410,6 +1686,7 @@ class Dmgcpu {
         break;
     case 0xC0 :               // RET NZ
         if ((f & F_ZERO) == 0) {
+         cycleCount += 12;
          pc = (JavaBoy.unsign(addressRead(sp + 1)) << 8) + JavaBoy.unsign(addressRead(sp));
          sp += 2;
         } else {
@@ -1424,6 +1701,7 @@ class Dmgcpu {
         break;
     case 0xC2 :               // JP NZ, nnnn
         if ((f & F_ZERO) == 0) {
+         cycleCount += 4;
          pc = (b3 << 8) + b2;
         } else {
          pc += 3;
@@ -1434,6 +1712,7 @@ class Dmgcpu {
         break;
     case 0xC4 :               // CALL NZ, nnnnn
         if ((f & F_ZERO) == 0) {
+         cycleCount += 12;
          pc += 3;
          sp -= 2;
          addressWrite(sp + 1, pc >> 8);
@@ -1452,23 +1731,10 @@ class Dmgcpu {
         break;
     case 0xC6 :               // ADD A, nn
         pc+=2;
-        f = 0;
-
-        if ((((a & 0x0F) + (b2 & 0x0F)) & 0xF0) != 0x00) {
-         f |= F_HALFCARRY;
-        }
-
-        a += b2;
-
-        if ((a & 0xFF00) != 0) {     // Perform 8-bit overflow and set zero flag
-         if (a == 0x0100) {
-          f |= F_ZERO + F_CARRY + F_HALFCARRY;
-          a = 0;
-         } else {
-          f |= F_CARRY + F_HALFCARRY;
-          a &= 0x00FF;
-         }
-        }
+        // Unlike ADD A, r, this doesn't set the zero flag for 0 + 0
+        dat = ((a | b2) == 0) ? 0 : FlagTables.ADD[(a << 8) | b2];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0xCF :               // RST 08
         pc++;
@@ -1479,6 +1745,7 @@ class Dmgcpu {
         break;
     case 0xC8 :               // RET Z
         if ((f & F_ZERO) == F_ZERO) {
+         cycleCount += 12;
          pc = (JavaBoy.unsign(addressRead(sp + 1)) << 8) + JavaBoy.unsign(addressRead(sp));
          sp += 2;
         } else {
@@ -1491,6 +1758,7 @@ class Dmgcpu {
         break;
     case 0xCA :               // JP Z, nnnn
         if ((f & F_ZERO) == F_ZERO) {
+         cycleCount += 4;
          pc = (b3 << 8) + b2;
         } else {
          pc += 3;
@@ -1498,140 +1766,14 @@ class Dmgcpu {
         break;
     case 0xCB :               // Shift/bit test
         pc += 2;
+        cycleCount += CB_CYCLES[b2];
         int regNum = b2 & 0x07;
         int data = registerRead(regNum);
 //        System.out.println("0xCB instr! - reg " + JavaBoy.hexByte((short) (b2 & 0xF4)));
-        if ((b2 & 0xC0) == 0) {
-         switch ((b2 & 0xF8)) {
-          case 0x00 :          // RLC A
-           if ((data & 0x80) == 0x80) {
-            f = F_CARRY;
-           } else {
-            f = 0;
-           }
-           data <<= 1;
-           if ((f & F_CARRY) == F_CARRY) {
-            data |= 1;
-           }
-
-           data &= 0xFF;
-           if (data == 0) {
-            f |= F_ZERO;
-           }
-           registerWrite(regNum, data);
-           break;
-          case 0x08 :          // RRC A
-           if ((data & 0x01) == 0x01) {
-            f = F_CARRY;
-           } else {
-            f = 0;
-           }
-           data >>= 1;
-           if ((f & F_CARRY) == F_CARRY) {
-            data |= 0x80;
-           }
-           if (data == 0) {
-            f |= F_ZERO;
-           }
-           registerWrite(regNum, data);
-           break;
-          case 0x10 :          // RL r
-   
-           if ((data & 0x80) == 0x80) {
-            newf = F_CARRY;
-           } else {
-            newf = 0;
-           }
-           data <<= 1;
-          
-           if ((f & F_CARRY) == F_CARRY) {
-            data |= 1;
-           }
-
-           data &= 0xFF;
-           if (data == 0) {
-            newf |= F_ZERO;
-           }
-           f = newf;
-           registerWrite(regNum, data);
-           break;
-          case 0x18 :          // RR r
-           if ((data & 0x01) == 0x01) {
-            newf = F_CARRY;
-           } else {
-            newf = 0;
-           }
-           data >>= 1;
-  
-           if ((f & F_CARRY) == F_CARRY) {
-            data |= 0x80;
-           }
-      
-           if (data == 0) {
-            newf |= F_ZERO;
-           }
-           f = newf;
-           registerWrite(regNum, data);
-           break;
-          case 0x20 :          // SLA r
-           if ((data & 0x80) == 0x80) {
-            f = F_CARRY;
-           } else {
-            f = 0;
-           }
-
-           data <<= 1;
-  
-           data &= 0xFF;
-           if (data == 0) {
-            f |= F_ZERO;
-           }
-           registerWrite(regNum, data);
-           break;
-          case 0x28 :          // SRA r
-           short topBit = 0;
-
-           topBit = (short) (data & 0x80);
-           if ((data & 0x01) == 0x01) {
-            f = F_CARRY;
-           } else {
-            f = 0;
-           }
-
-           data >>= 1;
-           data |= topBit;
-
-           if (data == 0) {
-            f |= F_ZERO;
-           }
-           registerWrite(regNum, data);
-           break;
-          case 0x30 :          // SWAP r
-  
-           data = (short) (((data & 0x0F) << 4) | ((data & 0xF0) >> 4));
-           if (data == 0) {
-            f = F_ZERO;
-           } else {
-            f = 0;
-           }
-//           System.out.println("SWAP - answer is " + JavaBoy.hexByte(data));
-           registerWrite(regNum, data);
-           break;
-          case 0x38 :          // SRL r
-           if ((data & 0x01) == 0x01) {
-            f = F_CARRY;
-           } else {
-            f = 0;
-           }
-
-           data >>= 1;
-
-           if (data == 0) {
-            f |= F_ZERO;
-           }
-           registerWrite(regNum, data);
-           break;
-          }
+        if ((b2 & 0xC0) == 0) {    // Shifts and rotates
+         dat = FlagTables.SHIFT[((b2 & 0x38) << 6) | ((f & F_CARRY) << 4) | data];
+         f = dat >> 8;
+         registerWrite(regNum, dat & 0xFF);
         } else {
 
          int bitNumber = (b2 & 0x38) >> 3;
@@ -1660,6 +1802,7 @@ class Dmgcpu {
         break;
     case 0xCC :               // CALL Z, nnnnn
         if ((f & F_ZERO) == F_ZERO) {
+         cycleCount += 12;
          pc += 3;
          sp -= 2;
          addressWrite(sp + 1, pc >> 8);
@@ -1678,27 +1821,10 @@ class Dmgcpu {
         break;
     case 0xCE :               // ADC A, nn
         pc+=2;
-
-        if ((f & F_CARRY) != 0) {
-         b2++;
-        }
-        f = 0;
-
-        if ((((a & 0x0F) + (b2 & 0x0F)) & 0xF0) != 0x00) {
-         f |= F_HALFCARRY;
-        }
-
-        a += b2;
-
-        if ((a & 0xFF00) != 0) {     // Perform 8-bit overflow and set zero flag
-         if (a == 0x0100) {
-          f |= F_ZERO + F_CARRY + F_HALFCARRY;
-          a = 0;
-         } else {
-          f |= F_CARRY + F_HALFCARRY;
-          a &= 0x00FF;
-         }
-        }
+        dat = ((f & F_CARRY) << 12) | (a << 8) | b2;
+        dat = (dat == 0) ? 0 : FlagTables.ADD[dat];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0xC7 :               // RST 00
         pc++;
@@ -1710,6 +1836,7 @@ class Dmgcpu {
         break;
     case 0xD0 :               // RET NC
         if ((f & F_CARRY) == 0) {
+         cycleCount += 12;
          pc = (JavaBoy.unsign(addressRead(sp + 1)) << 8) + JavaBoy.unsign(addressRead(sp));
          sp += 2;
         } else {
@@ -1724,6 +1851,7 @@ class Dmgcpu {
         break;
     case 0xD2 :               // JP NC, nnnn
         if ((f & F_CARRY) == 0) {
+         cycleCount += 4;
          pc = (b3 << 8) + b2;
         } else {
          pc += 3;
@@ -1731,6 +1859,7 @@ class Dmgcpu {
         break;
     case 0xD4 :               // CALL NC, nnnn
         if ((f & F_CARRY) == 0) {
+         cycleCount += 12;
          pc += 3;
          sp -= 2;
          addressWrite(sp + 1, pc >> 8);
@@ -1749,23 +1878,10 @@ class Dmgcpu {
         break;
     case 0xD6 :               // SUB A, nn
         pc+=2;
-
-        f = F_SUBTRACT;
-
-        if ((((a & 0x0F) - (b2 & 0x0F)) & 0xFFF0) != 0x00) {
-         f |= F_HALFCARRY;
-        }
-
-        a -= b2;
-
-        if ((a & 0xFF00) != 0) {
-         a &= 0x00FF;
-         f |= F_CARRY;
-         }
-         if (a == 0) {
-          f |= F_ZERO;
-         }
-         break;
+        dat = FlagTables.SUB[(a << 8) | b2];
+        a = dat & 0xFF;
+        f = dat >> 8;
+        break;
     case 0xD7 :               // RST 10
         pc++;
         sp -= 2;
@@ -1775,6 +1891,7 @@ class Dmgcpu {
         break;
     case 0xD8 :               // RET C
         if ((f & F_CARRY) == F_CARRY) {
+         cycleCount += 12;
          pc = (JavaBoy.unsign(addressRead(sp + 1)) << 8) + JavaBoy.unsign(addressRead(sp));
          sp += 2;
         } else {
@@ -1789,6 +1906,7 @@ class Dmgcpu {
         break;
     case 0xDA :               // JP C, nnnn
         if ((f & F_CARRY) == F_CARRY) {
+         cycleCount += 4;
          pc = (b3 << 8) + b2;
         } else {
          pc += 3;
@@ -1796,6 +1914,7 @@ class Dmgcpu {
         break;
     case 0xDC :               // CALL C, nnnn
         if ((f & F_CARRY) == F_CARRY) {
+         cycleCount += 12;
          pc += 3;
          sp -= 2;
          addressWrite(sp + 1, pc >> 8);
@@ -1807,25 +1926,9 @@ class Dmgcpu {
         break;
     case 0xDE :               // SBC A, nn
         pc+=2;
-        if ((f & F_CARRY) != 0) {
-         b2++;
-        }
-
-        f = F_SUBTRACT;
-        if ((((a & 0x0F) - (b2 & 0x0F)) & 0xFFF0) != 0x00) {
-         f |= F_HALFCARRY;
-        }
-
-        a -= b2;
-
-        if ((a & 0xFF00) != 0) {
-         a &= 0x00FF;
-         f |= F_CARRY;
-        }
-
-        if (a == 0) {
-         f |= F_ZERO;
-        }
+        dat = FlagTables.SUB[((f & F_CARRY) << 12) | (a << 8) | b2];
+        a = dat & 0xFF;
+        f = dat >> 8;
         break;
     case 0xDF :               // RST 18
         pc++;
@@ -1905,6 +2008,9 @@ class Dmgcpu {
         pc = 0x28;
         break;
     case 0xF0 :               // LDH A, (FFnn)
+        if (idleLoopSkipping && (ieDelay == -1)) {
+         r += skipIdleLoop(b1, (numInstr == -1) ? Integer.MAX_VALUE : numInstr - r - 1);
+        }
         pc += 2;
         a = JavaBoy.unsign(addressRead(0xFF00 + b2));
         break;
@@ -1961,6 +2067,9 @@ class Dmgcpu {
         sp = hl;
         break;
     case 0xFA :               // LD A, (nnnn)
+        if (idleLoopSkipping && (ieDelay == -1) && (b3 == 0xFF)) {
+         r += skipIdleLoop(b1, (numInstr == -1) ? Integer.MAX_VALUE : numInstr - r - 1);
+        }
         pc+=3;
         a = JavaBoy.unsign(addressRead((b3 << 8) + b2));
         break;
@@ -1972,14 +2081,7 @@ class Dmgcpu {
         break;
     case 0xFE :               // CP nn     ** FLAGS ARE WRONG! **
         pc += 2;
-        f = 0;
-        if (b2 == a) {
-         f |= F_ZERO;
-        } else {
-         if (a < b2) {
-          f |= F_CARRY;
-         }
-        }
+        f = (FlagTables.SUB[(a << 8) | b2] >> 8) & (F_ZERO | F_CARRY);
         break;
     case 0xFF :               // RST 38
         pc++;
@@ -1995,58 +2097,25 @@ class Dmgcpu {
          pc++;
          int operand = registerRead(b1 & 0x07);
          switch ((b1 & 0x38) >> 3) {
-          case 1 : // ADC A, r
-              if ((f & F_CARRY) != 0) {
-               operand++;
-              }
-              // Note!  No break!
           case 0 : // ADD A, r
-
-              f = 0;
-
-              if ((((a & 0x0F) + (operand & 0x0F)) & 0xF0) != 0x00) {
-               f |= F_HALFCARRY;
-              }
-
-              a += operand;
-
-              if (a == 0) {
-               f |= F_ZERO;
-              }
-
-              if ((a & 0xFF00) != 0) {     // Perform 8-bit overflow and set zero flag
-               if (a == 0x0100) {
-                f |= F_ZERO + F_CARRY + F_HALFCARRY;
-                a = 0;
-               } else {
-                f |= F_CARRY + F_HALFCARRY;
-                a &= 0x00FF;
-               }
-              }
+              dat = FlagTables.ADD[(a << 8) | operand];
+              a = dat & 0xFF;
+              f = dat >> 8;
+              break;
+          case 1 : // ADC A, r
+              dat = FlagTables.ADD[((f & F_CARRY) << 12) | (a << 8) | operand];
+              a = dat & 0xFF;
+              f = dat >> 8;
               break;
-          case 3 : // SBC A, r
-              if ((f & F_CARRY) != 0) {
-               operand++;
-              }
-              // Note! No break!
           case 2 : // SUB A, r
-
-              f = F_SUBTRACT;
-
-              if ((((a & 0x0F) - (operand & 0x0F)) & 0xFFF0) != 0x00) {
-               f |= F_HALFCARRY;
-              }
-
-              a -= operand;
-
-              if ((a & 0xFF00) != 0) {
-               a &= 0x00FF;
-               f |= F_CARRY;
-              }
-              if (a == 0) {
-               f |= F_ZERO;
-              }
-
+              dat = FlagTables.SUB[(a << 8) | operand];
+              a = dat & 0xFF;
+              f = dat >> 8;
+              break;
+          case 3 : // SBC A, r
+              dat = FlagTables.SUB[((f & F_CARRY) << 12) | (a << 8) | operand];
+              a = dat & 0xFF;
+              f = dat >> 8;
               break;
           case 4 : // AND A, r
               a &= operand;
@@ -2073,16 +2142,7 @@ class Dmgcpu {
               }
               break;
           case 7 : // CP A, r (compare)
-              f = F_SUBTRACT;
-              if (a == operand) {
-               f |= F_ZERO;
-              }
-              if (a < operand) {
-               f |= F_CARRY;
-              }
-              if ((a & 0x0F) < (operand & 0x0F)) {
-               f |= F_HALFCARRY;
-              }
+              f = FlagTables.SUB[(a << 8) | operand] >> 8;
               break;
          }
         } else if ((b1 & 0xC0) == 0x40) {   // Byte 0x01xxxxxxx indicates 8-bit ld
@@ -2115,10 +2175,10 @@ class Dmgcpu {
     checkInterrupts();
    }
 
-   cartridge.update();
-
 
-   initiateInterrupts();
+   if (cycleCount >= nextEventTime) {
+    initiateInterrupts();
+   }
 
 
 /*   if ((hl & 0xFFFF0000) != 0) {
@@ -2131,6 +2191,186 @@ class Dmgcpu {
   terminate = false;
  }
 
+ /** Checks whether the code at PC is a short loop that only polls LY, STAT or IF, and if so
+  *  skips over as many passes through the loop as can be run before the polled value can change.
+  *  Every skipped pass would read the same values and so leave the same A and F, so the result
+  *  is the same as running them.  Called when the loop's first instruction, the specified
+  *  opcode, is about to be executed and its cycles have been added to cycleCount.  No more than
+  *  maxInstrs instructions are skipped.  Returns the number of instructions skipped.
+  */
+ final int skipIdleLoop(int opcode, int maxInstrs) {
+  if (pc >= 0xFE00 - MAX_IDLE_LOOP_LENGTH) return 0;
+
+  long start = cycleCount - INSTRUCTION_CYCLES[opcode];
+  int loopCycles = 0;
+  int loopInstrs = 0;
+  int newA = a;
+  int newF = f;
+  boolean readsStat = false;
+  int addr = pc;
+
+  // Run through one pass of the loop, allowing only instructions without side effects
+  while (true) {
+   if (addr - pc >= MAX_IDLE_LOOP_LENGTH) return 0;
+   int op = JavaBoy.unsign(addressRead(addr));
+   int n = JavaBoy.unsign(addressRead(addr + 1));
+   loopCycles += INSTRUCTION_CYCLES[op];
+   loopInstrs++;
+
+   switch (op) {
+    case 0x00 :               // NOP
+        addr++;
+        continue;
+    case 0xFA :               // LD A, (FFnn)
+        if (JavaBoy.unsign(addressRead(addr + 2)) != 0xFF) return 0;
+        addr++;
+        // Note!  No break!
+    case 0xF0 :               // LDH A, (FFnn)
+        if ((n != 0x41) && (n != 0x44) && (n != 0x0F)) return 0;
+        if (n == 0x41) readsStat = true;
+        newA = JavaBoy.unsign(addressRead(0xFF00 + n));
+        addr += 2;
+        continue;
+    case 0xFE :               // CP nn
+        newF = (FlagTables.SUB[(newA << 8) | n] >> 8) & (F_ZERO | F_CARRY);
+        addr += 2;
+        continue;
+    case 0xE6 :               // AND nn
+        newA &= n;
+        newF = (newA == 0) ? F_ZERO : 0;
+        addr += 2;
+        continue;
+    case 0xCB :               // BIT n, A
+        if ((n & 0xC7) != 0x47) return 0;
+        loopCycles += CB_CYCLES[n];
+        newF = (newF & F_CARRY) | F_HALFCARRY;
+        if ((newA & (0x01 << ((n & 0x38) >> 3))) == 0) newF |= F_ZERO;
+        addr += 2;
+        continue;
+    case 0x18 :               // JR nn
+    case 0x20 :               // JR NZ, nn
+    case 0x28 :               // JR Z, nn
+    case 0x30 :               // JR NC, nn
+    case 0x38 :               // JR C, nn
+        if (addr + 2 + (byte) n != pc) return 0;
+        if (op != 0x18) {
+         int flag = ((op & 0x10) == 0) ? F_ZERO : F_CARRY;
+         boolean taken = ((op & 0x08) == 0) ? ((newF & flag) == 0) : ((newF & flag) != 0);
+         if (!taken) return 0;
+         loopCycles += 4;
+        }
+        break;
+    default :
+        return 0;
+   }
+   break;
+  }
+
+  // LY and IF only change on events.  STAT also changes at each mode boundary within a line.
+  long limit = nextEventTime;
+  if (readsStat) {
+   int speed = CYCLES_PER_LINE / BASE_CYCLES_PER_LINE;
+   long mode3Start = eventTime[EVENT_SCANLINE] - CYCLES_PER_LINE + BASE_CYCLES_MODE_2 * speed;
+   long mode0Start = mode3Start + BASE_CYCLES_MODE_3 * speed;
+   if (mode3Start > start) {
+    limit = Math.min(limit, mode3Start);
+   } else if (mode0Start > start) {
+    limit = Math.min(limit, mode0Start);
+   }
+  }
+
+  // Skip passes that finish before the limit, so that every read in them sees the same values
+  long passes = Math.min((limit - 1 - start) / loopCycles, maxInstrs / loopInstrs);
+  if (passes <= 0) return 0;
+
+  cycleCount += passes * loopCycles;
+  instrCount += passes * loopInstrs;
+  idleCyclesSkipped += passes * loopCycles;
+  a = newA;
+  f = newF;
+  return (int) passes * loopInstrs;
+ }
+
+ /** Sets the speed of the emulation as a multiple of a real Gameboy's, or
+  *  SpeedGovernor.UNLIMITED to run as fast as possible.  Returns false, leaving the speed alone,
+  *  if the multiplier isn't one of SpeedGovernor.SPEEDS.
+  */
+ public boolean setSpeed(int multiplier) {
+  if (!SpeedGovernor.isSupported(multiplier)) return false;
+  if (throttlePolicy instanceof SpeedGovernor) {
+   ((SpeedGovernor) throttlePolicy).setMultiplier(multiplier);
+  } else {
+   throttlePolicy = new SpeedGovernor(multiplier);
+  }
+  return true;
+ }
+
+ /** Returns the speed achieved over the last second compared with a real Gameboy, or 0 if
+  *  it isn't being measured.
+  */
+ public float getSpeedRatio() {
+  if (throttlePolicy instanceof SpeedGovernor) {
+   return ((SpeedGovernor) throttlePolicy).getSpeedRatio();
+  }
+  return 0;
+ }
+
+ /** Turn deterministic mode on or off.  When it is on, the cartridge's real time clock counts
+  *  emulated time instead of the computer's clock, starting from zero, so it must be set before
+  *  the run that is to be repeated.  Turning it off carries on from the clock's current value.
+  *  The throttle only ever delays the emulation, so it is left alone.
+  */
+ public void setDeterministic(boolean on) {
+  deterministic = on;
+  if (on) {
+   cartridge.setTimeSource(new EmulatedTimeSource(this));
+   cartridge.setRtcSeconds(0);
+   cartridge.latchRtc();
+  } else {
+   cartridge.setTimeSource(new SystemTimeSource());
+  }
+ }
+
+ /** Turn the recompiler on or off.  It stays off if class loaders can't be created. */
+ public void setRecompilerEnabled(boolean on) {
+  if (!on) {
+   recompiler = null;
+  } else if (recompiler == null) {
+   try {
+    recompiler = new Recompiler(cartridge);
+   } catch (SecurityException e) {
+    System.out.println("Recompiler not available: " + e);
+    recompiler = null;
+   }
+  }
+ }
+
+ /** Runs a compiled block, copying the registers in and out of it.  Returns the number of
+  *  instructions and cycles executed, as CompiledBlock.execute().
+  */
+ final int executeBlock(CompiledBlock block) {
+  int[] regs = blockRegisters;
+  regs[CompiledBlock.REG_A] = a;
+  regs[CompiledBlock.REG_B] = b;
+  regs[CompiledBlock.REG_C] = c;
+  regs[CompiledBlock.REG_D] = d;
+  regs[CompiledBlock.REG_E] = e;
+  regs[CompiledBlock.REG_F] = f;
+  regs[CompiledBlock.REG_HL] = hl;
+  regs[CompiledBlock.REG_SP] = sp;
+  int result = block.execute(regs, readPages, readOffsets);
+  a = regs[CompiledBlock.REG_A];
+  b = regs[CompiledBlock.REG_B];
+  c = regs[CompiledBlock.REG_C];
+  d = regs[CompiledBlock.REG_D];
+  e = regs[CompiledBlock.REG_E];
+  f = regs[CompiledBlock.REG_F];
+  hl = regs[CompiledBlock.REG_HL];
+  sp = regs[CompiledBlock.REG_SP];
+  pc = regs[CompiledBlock.REG_PC];
+  return result;
+ }
+
  public void setBreakpoint(boolean on) {
   breakpointEnable = on;
  }
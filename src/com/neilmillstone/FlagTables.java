@@ -0,0 +1,178 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Precomputed results and flags for the 8-bit ALU operations, so that the CPU can find both
+ *  with a single lookup instead of testing boundary cases.  Each entry holds the result in
+ *  bits 0-7 and the new flags register in bits 8-15.  The tables are filled in by running the
+ *  operations' original flag logic over every input.
+ */
+class FlagTables {
+
+ // Flags register bits, as in Dmgcpu
+
+ static final int F_ZERO =      0x80;
+ static final int F_SUBTRACT =  0x40;
+ static final int F_HALFCARRY = 0x20;
+ static final int F_CARRY =     0x10;
+
+ /** ADD and ADC.  Indexed by (carry << 16) | (a << 8) | operand, where carry is 1 for an ADC
+  *  with the carry flag set, i.e. ((f & F_CARRY) << 12) | (a << 8) | operand.
+  */
+ static final char[] ADD = new char[0x20000];
+
+ /** SUB, SBC and CP, indexed in the same way as ADD */
+ static final char[] SUB = new char[0x20000];
+
+ /** INC and DEC, indexed by the value.  The carry flag is not included, as it is not changed */
+ static final char[] INC = new char[0x100];
+ static final char[] DEC = new char[0x100];
+
+ /** CB shift and rotate operations, indexed by ((op & 0x38) << 6) | ((f & F_CARRY) << 4) | value.
+  *  RLCA, RRCA, RLA and RRA give the same results as their CB versions on A.
+  */
+ static final char[] SHIFT = new char[0x1000];
+
+ /** Index in SHIFT of each operation */
+ static final int RLC = 0x000;
+ static final int RRC = 0x200;
+ static final int RL =  0x400;
+ static final int RR =  0x600;
+
+ static {
+  for (int carry = 0; carry < 2; carry++) {
+   for (int a = 0; a < 0x100; a++) {
+    for (int operand = 0; operand < 0x100; operand++) {
+     int index = (carry << 16) | (a << 8) | operand;
+     ADD[index] = (char) add(a, operand + carry);
+     SUB[index] = (char) sub(a, operand + carry);
+    }
+   }
+  }
+
+  for (int value = 0; value < 0x100; value++) {
+   INC[value] = (char) inc(value);
+   DEC[value] = (char) dec(value);
+   for (int op = 0; op < 8; op++) {
+    for (int carry = 0; carry < 2; carry++) {
+     SHIFT[(op << 9) | (carry << 8) | value] = (char) shift(op, carry, value);
+    }
+   }
+  }
+ }
+
+ static int add(int a, int operand) {
+  int f = 0;
+  if ((((a & 0x0F) + (operand & 0x0F)) & 0xF0) != 0x00) {
+   f |= F_HALFCARRY;
+  }
+  a += operand;
+  if (a == 0) {
+   f |= F_ZERO;
+  }
+  if ((a & 0xFF00) != 0) {     // Perform 8-bit overflow and set zero flag
+   if (a == 0x0100) {
+    f |= F_ZERO + F_CARRY + F_HALFCARRY;
+    a = 0;
+   } else {
+    f |= F_CARRY + F_HALFCARRY;
+    a &= 0x00FF;
+   }
+  }
+  return a | (f << 8);
+ }
+
+ static int sub(int a, int operand) {
+  int f = F_SUBTRACT;
+  if ((((a & 0x0F) - (operand & 0x0F)) & 0xFFF0) != 0x00) {
+   f |= F_HALFCARRY;
+  }
+  a -= operand;
+  if ((a & 0xFF00) != 0) {
+   a &= 0x00FF;
+   f |= F_CARRY;
+  }
+  if (a == 0) {
+   f |= F_ZERO;
+  }
+  return a | (f << 8);
+ }
+
+ static int inc(int value) {
+  switch (value) {
+   case 0xFF: return 0x00 | ((F_HALFCARRY + F_ZERO) << 8);
+   case 0x0F: return 0x10 | (F_HALFCARRY << 8);
+   default:   return value + 1;
+  }
+ }
+
+ static int dec(int value) {
+  switch (value) {
+   case 0x00: return 0xFF | ((F_SUBTRACT + F_HALFCARRY) << 8);
+   case 0x10: return 0x0F | ((F_SUBTRACT + F_HALFCARRY) << 8);
+   case 0x01: return 0x00 | ((F_SUBTRACT + F_ZERO) << 8);
+   default:   return (value - 1) | (F_SUBTRACT << 8);
+  }
+ }
+
+ static int shift(int op, int carry, int value) {
+  int f = 0;
+  switch (op) {
+   case 0 :          // RLC r
+    if ((value & 0x80) == 0x80) f = F_CARRY;
+    value = ((value << 1) | (value >> 7)) & 0xFF;
+    break;
+   case 1 :          // RRC r
+    if ((value & 0x01) == 0x01) f = F_CARRY;
+    value = (value >> 1) | ((value & 0x01) << 7);
+    break;
+   case 2 :          // RL r
+    if ((value & 0x80) == 0x80) f = F_CARRY;
+    value = ((value << 1) | carry) & 0xFF;
+    break;
+   case 3 :          // RR r
+    if ((value & 0x01) == 0x01) f = F_CARRY;
+    value = (value >> 1) | (carry << 7);
+    break;
+   case 4 :          // SLA r
+    if ((value & 0x80) == 0x80) f = F_CARRY;
+    value = (value << 1) & 0xFF;
+    break;
+   case 5 :          // SRA r
+    if ((value & 0x01) == 0x01) f = F_CARRY;
+    value = (value >> 1) | (value & 0x80);
+    break;
+   case 6 :          // SWAP r
+    value = ((value & 0x0F) << 4) | ((value & 0xF0) >> 4);
+    break;
+   case 7 :          // SRL r
+    if ((value & 0x01) == 0x01) f = F_CARRY;
+    value >>= 1;
+    break;
+  }
+  if (value == 0) {
+   f |= F_ZERO;
+  }
+  return value | (f << 8);
+ }
+
+}
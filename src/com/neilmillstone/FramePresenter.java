@@ -0,0 +1,67 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.awt.*;
+import java.awt.image.*;
+
+/** Shows a graphics chip's frame buffer in the user interface, scaled up to the magnification
+ *  as it's drawn.  The image is wrapped around the frame buffer, so nothing is copied until the
+ *  scaled drawing itself, and the work done per frame is the same whatever the window size.
+ *  Used by both the applet and the application.
+ */
+class FramePresenter {
+
+ /** The frame buffer the image was made for */
+ int[] frameBuffer;
+
+ /** The frame buffer as an image, created when first drawn */
+ BufferedImage image;
+
+ /** Draws the chip's frame at the given position, scaled to the chip's magnification.  Chips
+  *  that have no frame buffer draw nothing.
+  */
+ public void draw(Graphics g, GraphicsChip chip, int startX, int startY) {
+  int[] buffer = chip.getFrameBuffer();
+  if (buffer == null) return;
+
+  if (buffer != frameBuffer) {
+   dispose();
+   DataBufferInt data = new DataBufferInt(buffer, buffer.length);
+   WritableRaster raster = Raster.createPackedRaster(data, GraphicsChip.SCREEN_WIDTH,
+     GraphicsChip.SCREEN_HEIGHT, GraphicsChip.SCREEN_WIDTH,
+     new int[] {0x00FF0000, 0x0000FF00, 0x000000FF}, null);
+   image = new BufferedImage(new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF),
+     raster, false, null);
+   frameBuffer = buffer;
+  }
+  g.drawImage(image, startX, startY, chip.getWidth(), chip.getHeight(), null);
+ }
+
+ /** Frees the image */
+ public void dispose() {
+  if (image != null) image.flush();
+  image = null;
+  frameBuffer = null;
+ }
+
+}
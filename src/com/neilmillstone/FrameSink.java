@@ -0,0 +1,38 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Receives the frames produced by the emulation.  The AWT user interface is one
+ *  implementation, HeadlessFrameSink is another which allows the emulation to run
+ *  without a display.
+ */
+interface FrameSink {
+
+ /** Creates the graphics chip that will draw frames for this sink */
+ GraphicsChip createGraphicsChip(Dmgcpu dmgcpu);
+
+ /** Called by the CPU when the last scanline of a frame has been drawn.  The sink may
+  *  block until the frame has been presented.
+  */
+ void frameReady(GraphicsChip chip);
+
+}
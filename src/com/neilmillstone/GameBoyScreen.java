@@ -46,12 +46,18 @@ import javax.sound.sampled.*;
  */
 
 class GameBoyScreen extends Frame implements ActionListener,
-   ComponentListener, ItemListener  {
+   ComponentListener, ItemListener, FrameSink  {
  GraphicsChip graphicsChip = null;
  JavaBoy applet;
 
  CheckboxMenuItem viewFrameCounter;
- CheckboxMenuItem viewSpeedThrottle;
+
+ /** Selects the ScanlineGraphicsChip rather than the TileBasedGraphicsChip for the next ROM */
+ CheckboxMenuItem viewScanline;
+
+ /** Shows the frames from the graphics chip */
+ FramePresenter presenter = new FramePresenter();
+ CheckboxMenuItem[] viewSpeed = new CheckboxMenuItem[SpeedGovernor.SPEEDS.length];
 
  CheckboxMenuItem viewFrameSkip0;
  CheckboxMenuItem viewFrameSkip1;
@@ -157,10 +163,19 @@ class GameBoyScreen extends Frame implements ActionListener,
   viewFrameCounter.setActionCommand("Frame counter");
   viewFrameCounter.addActionListener(this);
 
-  viewSpeedThrottle = new CheckboxMenuItem("Speed throttle");
-  viewSpeedThrottle.setActionCommand("Speed throttle");
-  viewSpeedThrottle.addActionListener(this);
-  viewSpeedThrottle.setState(true);
+  viewScanline = new CheckboxMenuItem("Draw each scanline");
+  viewScanline.addItemListener(this);
+  viewScanline.setState(true);
+
+  for (int r = 0; r < viewSpeed.length; r++) {
+   if (SpeedGovernor.SPEEDS[r] == SpeedGovernor.UNLIMITED) {
+    viewSpeed[r] = new CheckboxMenuItem("Speed: unlimited");
+   } else {
+    viewSpeed[r] = new CheckboxMenuItem("Speed: " + SpeedGovernor.SPEEDS[r] + "x");
+   }
+   viewSpeed[r].addItemListener(this);
+  }
+  viewSpeed[0].setState(true);
 
   CheckboxMenuItem viewStandardCols = new CheckboxMenuItem("Standard colours");
   viewStandardCols.addItemListener(this);
@@ -255,7 +270,11 @@ class GameBoyScreen extends Frame implements ActionListener,
   viewMenu.add(viewFrameSkip4);
   viewMenu.add(new MenuItem("-"));
   viewMenu.add(viewFrameCounter);
-  viewMenu.add(viewSpeedThrottle);
+  viewMenu.add(viewScanline);
+  viewMenu.add(new MenuItem("-"));
+  for (int r = 0; r < viewSpeed.length; r++) {
+   viewMenu.add(viewSpeed[r]);
+  }
   viewMenu.add(new MenuItem("-"));
 
   for (int r = 0; r < JavaBoy.schemeNames.length; r++) {
@@ -334,6 +353,23 @@ class GameBoyScreen extends Frame implements ActionListener,
   graphicsChip = g;
  }
 
+ /** Creates the graphics chip that draws into this window */
+ public GraphicsChip createGraphicsChip(Dmgcpu d) {
+  if (viewScanline.getState()) {
+   setGraphicsChip(new ScanlineGraphicsChip(d));
+  } else {
+   setGraphicsChip(new TileBasedGraphicsChip(d));
+  }
+  return graphicsChip;
+ }
+
+ /** Repaints the window, and waits until the new frame has been drawn */
+ public void frameReady(GraphicsChip chip) {
+  graphicsChip.frameDone = false;
+  repaint();
+  graphicsChip.waitForDraw();
+ }
+
  public void update(Graphics g) {
   paint(g);
  }
@@ -421,6 +457,14 @@ class GameBoyScreen extends Frame implements ActionListener,
   }
  }
 
+ public void setSpeedThrottle() {
+  if (applet.dmgcpu != null) {
+   for (int r = 0; r < viewSpeed.length; r++) {
+    if (viewSpeed[r].getState()) applet.dmgcpu.setSpeed(SpeedGovernor.SPEEDS[r]);
+   }
+  }
+ }
+
  public void setFrameSkip() {
   if (applet.dmgcpu != null) {
    if (viewFrameSkip0.getState()) {
@@ -453,6 +497,7 @@ class GameBoyScreen extends Frame implements ActionListener,
     if (applet.dmgcpu != null) {
      applet.dmgcpu.dispose();
      applet.dmgcpu = null;
+     presenter.dispose();
     }
     clearWindow();
    }
@@ -461,12 +506,15 @@ class GameBoyScreen extends Frame implements ActionListener,
    fd.show();
 
    if (fd.getFile() != null) {
-    applet.cartridge = new Cartridge(fd.getDirectory() + fd.getFile(), this);
+    applet.cartridge = new Cartridge(fd.getDirectory() + fd.getFile(), null);
+    if (applet.cartridge.loadMessage != null) {
+     new ModalDialog(this, applet.cartridge.loadMessage[0], applet.cartridge.loadMessage[1], applet.cartridge.loadMessage[2]);
+    }
     applet.dmgcpu = new Dmgcpu(applet.cartridge, applet.gameLink, this);
 //	applet.gameBoyPrinter = new GameBoyPrinter();
     if (applet.gameLink != null) applet.gameLink.setDmgcpu(applet.dmgcpu);
-    setGraphicsChip(applet.dmgcpu.graphicsChip);
     setSoundFreq();
+    setSpeedThrottle();
     setBufferLength();
     setMagnify();
     setFrameSkip();
@@ -477,8 +525,6 @@ class GameBoyScreen extends Frame implements ActionListener,
 
   } else if (command.equals("Frame counter")) {
    viewFrameCounter.setState(!viewFrameCounter.getState());
-  } else if (command.equals("Speed throttle")) {
-   viewSpeedThrottle.setState(!viewSpeedThrottle.getState());
   } else if (command.equals("Emulate")) {
    if ((applet.cartridge != null) && (applet.cartridge.cartridgeReady)) {
     applet.queueDebuggerCommand("g");
@@ -578,7 +624,12 @@ class GameBoyScreen extends Frame implements ActionListener,
  public void itemStateChanged(ItemEvent e) {
   String command = (String) e.getItem();
   System.out.println(command);
-  if (command.equals("Channel 1 (Square wave)")) {
+  if (command.startsWith("Speed: ")) {
+   for (int r = 0; r < viewSpeed.length; r++) {
+    viewSpeed[r].setState(command.equals(viewSpeed[r].getLabel()));
+   }
+   setSpeedThrottle();
+  } else if (command.equals("Channel 1 (Square wave)")) {
    if (applet.dmgcpu != null) {
     applet.dmgcpu.soundChip.channel1Enable = soundChannel1Enable.getState();
    }
@@ -735,12 +786,19 @@ class GameBoyScreen extends Frame implements ActionListener,
    Dimension d = getSize();
    int x = (d.width / 2) - (graphicsChip.width / 2);
    int y = (d.height / 2) - (graphicsChip.height / 2);
-   boolean b = graphicsChip.draw(g, x, y + 20, this);
+   if (graphicsChip.startFrame()) {
+    presenter.draw(g, graphicsChip, x, y + 20);
+   }
+   graphicsChip.frameDone = true;
    if (viewFrameCounter.getState()) {
     g.setColor(new Color(255, 255, 255));
     g.fillRect(0, d.height - 20, d.width, 20);
     g.setColor(new Color(0, 0, 0));
-    g.drawString(graphicsChip.getFPS() + " frames per second", 10, d.height - 7);
+    String speed = "";
+    if ((applet.dmgcpu != null) && (applet.dmgcpu.getSpeedRatio() != 0)) {
+     speed = ", " + Math.round(applet.dmgcpu.getSpeedRatio() * 100) + "% speed";
+    }
+    g.drawString(graphicsChip.getFPS() + " frames per second" + speed, 10, d.height - 7);
    }
   }
  }
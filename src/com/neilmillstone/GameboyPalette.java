@@ -21,24 +21,10 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import java.awt.*;
-import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
-import java.applet.*;
-import java.net.*;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowListener;
-import java.awt.event.ActionListener;
-import java.awt.event.ComponentListener;
-import java.awt.event.ItemListener;
-import java.awt.event.KeyEvent;
-import java.awt.event.WindowEvent;
-import java.awt.event.ActionEvent;
-import java.awt.event.ComponentEvent;
-import java.awt.event.ItemEvent;
+import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
-import javax.sound.sampled.*;
 /** This class represents a palette.  There can be three
  *  palettes, one for the background and window, and two
  *  for sprites. 
@@ -66,6 +52,13 @@ class GameboyPalette {
   decodePalette(pal);
  } 
 
+/** Copy the colour mappings and Gameboy Color data from another palette */
+ public void copyState(GameboyPalette from) {
+  System.arraycopy(from.data, 0, data, 0, 4);
+  System.arraycopy(from.gbcData, 0, gbcData, 0, 4);
+  System.arraycopy(from.colours, 0, colours, 0, 4);
+ }
+
 /** Change the colour mappings */
  public void setColours(int c1, int c2, int c3, int c4) {
   colours[0] = c1;
@@ -96,13 +89,6 @@ class GameboyPalette {
 
   }
 
-  int red = (gbcData[entryNo] & 0x001F) << 3;
-
-  int green = (gbcData[entryNo] & 0x03E0) >> 2;
-
-  int blue = (gbcData[entryNo] & 0x7C00) >> 7;
-
-
   data[0] = 0;
 
   data[1] = 1;
@@ -112,15 +98,22 @@ class GameboyPalette {
   data[3] = 3;
 
 
-  Color c = new Color(red, green, blue);
-
-  colours[entryNo] = c.getRGB();
+  colours[entryNo] = gbcRgb(gbcData[entryNo]);
 
 
 //  System.out.println("Colour " + entryNo + " set to " + red + ", " + green + ", " + blue);
 
  }
   
+ /** Converts a colour in the 15-bit GBC format to RGB */
+ static int gbcRgb(int gbcColour) {
+  int red = (gbcColour & 0x001F) << 3;
+  int green = (gbcColour & 0x03E0) >> 2;
+  int blue = (gbcColour & 0x7C00) >> 7;
+
+  return 0xFF000000 | (red << 16) | (green << 8) | blue;
+ }
+
  /** Set the palette from the internal Gameboy format */
  public void decodePalette(int pal) {
   data[0] = (short) (pal & 0x03);
@@ -136,4 +129,27 @@ class GameboyPalette {
  public short getEntry(int e) {
   return data[e];
  }
+
+ /** Writes the colour mappings and GBC colour data to a save state.  The RGB values of the
+  *  original Gameboy palettes are a user setting, so aren't saved.
+  */
+ public void saveState(ByteBuffer buffer) {
+  for (int r = 0; r < 4; r++) {
+   buffer.put((byte) data[r]);
+   buffer.putShort((short) gbcData[r]);
+  }
+ }
+
+ /** Reads the palette from a save state.  If gbc is true, the RGB values are recalculated
+  *  from the GBC colour data.
+  */
+ public void loadState(ByteBuffer buffer, boolean gbc) {
+  for (int r = 0; r < 4; r++) {
+   data[r] = buffer.get();
+   gbcData[r] = buffer.getShort() & 0xFFFF;
+   if (gbc) {
+    colours[r] = gbcRgb(gbcData[r]);
+   }
+  }
+ }
 }
@@ -21,29 +21,18 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import java.awt.*;
-import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
-import java.applet.*;
-import java.net.*;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowListener;
-import java.awt.event.ActionListener;
-import java.awt.event.ComponentListener;
-import java.awt.event.ItemListener;
-import java.awt.event.KeyEvent;
-import java.awt.event.WindowEvent;
-import java.awt.event.ActionEvent;
-import java.awt.event.ComponentEvent;
-import java.awt.event.ItemEvent;
+import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
-import javax.sound.sampled.*;
 /** This class is the master class for implementations 
   *  of the graphics class.  A graphics implementation will subclass from this class.
   *  It contains methods for calculating the frame rate. */
   
 abstract class GraphicsChip { 
+ static final int SCREEN_WIDTH = 160;
+ static final int SCREEN_HEIGHT = 144;
+
  /** Tile uses the background palette */ 
  static final int TILE_BKG = 0;
 
@@ -62,6 +51,12 @@ abstract class GraphicsChip {
  /** The current contents of the video memory, mapped in at 0x8000 - 0x9FFF */ 
  byte[] videoRam = new byte[0x8000]; 
 
+ /** Pages of video memory that have been written to */
+ DirtyPages videoRamDirty = new DirtyPages(0x8000);
+
+ /** True while videoRam is shared with a forked machine.  It is copied before the first write */
+ boolean videoRamShared = false;
+
  /** The background palette */ 
  GameboyPalette backgroundPalette; 
 
@@ -78,9 +73,16 @@ abstract class GraphicsChip {
  boolean bgEnabled = true;
  boolean winEnabled = true;
 
- /** The image containing the Gameboy screen */ 
- Image backBuffer; 
- 
+ /** The screen as RGB values, drawn at its real size and scaled up when it's shown.  Chips
+  *  that don't draw anything leave it null.
+  */
+ int[] frameBuffer;
+
+ /** Writes to the LCD registers on each line, for chips that draw the frame once it has been
+  *  displayed.  Null for the others.
+  */
+ RegisterLatch registerLatch;
+
  /** The current frame skip value */
  int frameSkip = 2;
  
@@ -92,9 +94,6 @@ abstract class GraphicsChip {
  int width = 160 * mag; 
  int height = 144 * mag; 
  
- /** Amount of time to wait between frames (ms) */ 
- int frameWaitTime = 0; 
- 
  /** The current frame has finished drawing */ 
  boolean frameDone = false; 
  int averageFPS = 0; 
@@ -109,14 +108,13 @@ abstract class GraphicsChip {
  /** Selection of one of two address for the BG tile map. */
  boolean hiBgTileMapAddress= false; 
  Dmgcpu dmgcpu; 
- Component applet;
  int tileStart = 0;
  int vidRamStart = 0;
 
 
 
  /** Create a new GraphicsChip connected to the speicfied CPU */ 
- public GraphicsChip(Component a, Dmgcpu d) {  
+ public GraphicsChip(Dmgcpu d) {  
   dmgcpu = d;
   
   backgroundPalette = new GameboyPalette(0, 1, 2, 3);
@@ -127,24 +125,63 @@ abstract class GraphicsChip {
    gbcBackground[r] = new GameboyPalette(0, 1, 2, 3);
    gbcSprite[r] = new GameboyPalette(0, 1, 2, 3);
   }
+ }
+
+ /** Copies the state of another graphics chip into this one, for a forked machine.  The video
+  *  memory is shared until one of the two chips writes to it.
+  */
+ public void copyState(GraphicsChip from) {
+  videoRam = from.videoRam;
+  videoRamShared = true;
+  from.videoRamShared = true;
+  backgroundPalette.copyState(from.backgroundPalette);
+  obj1Palette.copyState(from.obj1Palette);
+  obj2Palette.copyState(from.obj2Palette);
+  for (int r = 0; r < 8; r++) {
+   gbcBackground[r].copyState(from.gbcBackground[r]);
+   gbcSprite[r].copyState(from.gbcSprite[r]);
+  }
+  spritesEnabled = from.spritesEnabled;
+  bgEnabled = from.bgEnabled;
+  winEnabled = from.winEnabled;
+  bgWindowDataSelect = from.bgWindowDataSelect;
+  doubledSprites = from.doubledSprites;
+  hiBgTileMapAddress = from.hiBgTileMapAddress;
+  if ((registerLatch != null) && (from.registerLatch != null)) {
+   registerLatch.copyState(from.registerLatch);
+  }
+  tileStart = from.tileStart;
+  vidRamStart = from.vidRamStart;
+  invalidateAll();
+ }
 
-  backBuffer = a.createImage(160 * mag, 144 * mag);
-  applet = a;
- } /** Set the magnification for the screen */ 
+ /** Takes a private copy of the video memory, which has been shared with a forked machine */
+ final void unshareVideoRam() {
+  videoRam = videoRam.clone();
+  videoRamShared = false;
+  dmgcpu.mapVideoRam();
+ }
+
+ /** Set the magnification for the screen */ 
  
  public void setMagnify(int m) {
   mag = m;
   width = m * 160;
   height = m * 144;
-  if (backBuffer != null) backBuffer.flush();
-  backBuffer = applet.createImage(160 * mag, 144 * mag);
  } 
  
  /** Clear up any allocated memory */ 
  public void dispose() {  
-  backBuffer.flush();
  } 
- 
+
+ /** Returns the screen as RGB values, 160 pixels per line, or null if this chip doesn't draw.
+  *  The array is drawn into directly, so it only holds a complete frame between the end of one
+  *  frame and the start of the next.
+  */
+ public int[] getFrameBuffer() {
+  return frameBuffer;
+ }
+
  /** Calculate the number of frames per second for the current sampling period */ 
  public void calculateFPS() {  
   if (startTime == 0) {   
@@ -153,14 +190,6 @@ abstract class GraphicsChip {
    long delay = System.currentTimeMillis() - startTime;
    averageFPS = (int) ((framesDrawn) / (delay / 1000f));
    startTime = System.currentTimeMillis();
-   int timePerFrame;
-
-   if (averageFPS != 0) {
-    timePerFrame = 1000 / averageFPS;
-   } else {
-    timePerFrame = 100;
-   }
-   frameWaitTime = 17 - timePerFrame + frameWaitTime;
    framesDrawn = 0;
   }
  } 
@@ -178,10 +207,72 @@ abstract class GraphicsChip {
   return height;
  }
  
+ /** Writes video RAM, the palettes and the LCD control settings to a save state */
+ public void saveState(ByteBuffer buffer) {
+  buffer.put(videoRam);
+  backgroundPalette.saveState(buffer);
+  obj1Palette.saveState(buffer);
+  obj2Palette.saveState(buffer);
+  for (int r = 0; r < 8; r++) {
+   gbcBackground[r].saveState(buffer);
+   gbcSprite[r].saveState(buffer);
+  }
+  buffer.put((byte) ((spritesEnabled ? 0x01 : 0) | (bgEnabled ? 0x02 : 0) | (winEnabled ? 0x04 : 0) |
+    (bgWindowDataSelect ? 0x08 : 0) | (doubledSprites ? 0x10 : 0) | (hiBgTileMapAddress ? 0x20 : 0)));
+  buffer.putInt(tileStart);
+  buffer.putInt(vidRamStart);
+ }
+
+ /** Reads the graphics state from a save state, and invalidates any cached images */
+ public void loadState(ByteBuffer buffer) {
+  if (videoRamShared) unshareVideoRam();
+  buffer.get(videoRam);
+  backgroundPalette.loadState(buffer, false);
+  obj1Palette.loadState(buffer, false);
+  obj2Palette.loadState(buffer, false);
+  for (int r = 0; r < 8; r++) {
+   gbcBackground[r].loadState(buffer, true);
+   gbcSprite[r].loadState(buffer, true);
+  }
+  int flags = buffer.get();
+  spritesEnabled = (flags & 0x01) != 0;
+  bgEnabled = (flags & 0x02) != 0;
+  winEnabled = (flags & 0x04) != 0;
+  bgWindowDataSelect = (flags & 0x08) != 0;
+  doubledSprites = (flags & 0x10) != 0;
+  hiBgTileMapAddress = (flags & 0x20) != 0;
+  tileStart = buffer.getInt();
+  vidRamStart = buffer.getInt();
+  if (registerLatch != null) registerLatch.reset(dmgcpu.ioHandler.registers);
+  invalidateAll();
+ }
+
+ /** Called by the front end before it shows a frame.  Counts the frame for the frame rate and
+  *  frame skip, and returns true if the frame buffer holds a new frame to show.  The front end
+  *  sets frameDone once it has finished with the frame buffer.
+  */
+ public boolean startFrame() {
+  calculateFPS();
+  boolean ready = isFrameReady();
+  framesDrawn++;
+  return ready && (frameBuffer != null);
+ }
+
+ /** Waits until the front end has shown the frame, which it does on the user interface
+  *  thread.  frameDone must be cleared before the redraw is requested.
+  */
+ public void waitForDraw() {
+  try {
+   while (!frameDone) {
+    java.lang.Thread.sleep(1);
+   }
+  } catch (InterruptedException e) {
+   // Nothing.
+  }
+ }
+
  abstract public short addressRead(int addr); 
  abstract public void addressWrite(int addr, byte data); 
- abstract public void invalidateAll(int attribs); 
- abstract public boolean draw(Graphics g, int startX, int startY, Component a); 
  abstract public void notifyScanline(int line); 
  abstract public void invalidateAll();
  abstract public boolean isFrameReady();
@@ -0,0 +1,64 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** A graphics chip which keeps the video memory and registers up to date, but doesn't draw
+ *  anything.  Used when running without a display.
+ */
+class HeadlessGraphicsChip extends GraphicsChip {
+
+ public HeadlessGraphicsChip(Dmgcpu d) {
+  super(d);
+ }
+
+ /** Reads data from the specified video RAM address */
+ public short addressRead(int addr) {
+  return videoRam[addr + vidRamStart];
+ }
+
+ /** Writes data to the specified video RAM address */
+ public void addressWrite(int addr, byte data) {
+  if (videoRamShared) unshareVideoRam();
+  videoRam[addr + vidRamStart] = data;
+  videoRamDirty.mark(addr + vidRamStart);
+ }
+
+ public void invalidateAll() {
+ }
+
+ /** Counts frames, so that the frame rate can still be measured */
+ public void notifyScanline(int line) {
+  if (line == 0) {
+   framesDrawn++;
+   calculateFPS();
+  }
+ }
+
+ public boolean isFrameReady() {
+  return false;
+ }
+
+ /** Frames are counted as they finish, and there is never anything to show */
+ public boolean startFrame() {
+  return false;
+ }
+}
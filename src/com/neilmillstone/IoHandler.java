@@ -21,22 +21,9 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import java.awt.*;
-import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
-import java.applet.*;
-import java.net.*;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowListener;
-import java.awt.event.ActionListener;
-import java.awt.event.ComponentListener;
-import java.awt.event.ItemListener;
-import java.awt.event.KeyEvent;
-import java.awt.event.WindowEvent;
-import java.awt.event.ActionEvent;
-import java.awt.event.ComponentEvent;
-import java.awt.event.ItemEvent;
+import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
 import javax.sound.sampled.*;
 
@@ -59,12 +46,39 @@ class IoHandler {
 
  boolean hdmaRunning;
 
+ /** Bits of a joypad mask, as returned by getPadMask().  The directions are in the low four
+  *  bits and the buttons in the high four, in the same order as the joypad register.
+  */
+ static final int PAD_RIGHT = 0x01;
+ static final int PAD_LEFT = 0x02;
+ static final int PAD_UP = 0x04;
+ static final int PAD_DOWN = 0x08;
+ static final int PAD_A = 0x10;
+ static final int PAD_B = 0x20;
+ static final int PAD_SELECT = 0x40;
+ static final int PAD_START = 0x80;
+
  /** Create an IoHandler for the specified CPU */
  public IoHandler(Dmgcpu d) {
   dmgcpu = d;
   reset();
  }
 
+ /** Create an IoHandler for a forked CPU, with the same register and button state as another */
+ public IoHandler(Dmgcpu d, IoHandler from) {
+  dmgcpu = d;
+  System.arraycopy(from.registers, 0, registers, 0, registers.length);
+  padLeft = from.padLeft;
+  padRight = from.padRight;
+  padUp = from.padUp;
+  padDown = from.padDown;
+  padA = from.padA;
+  padB = from.padB;
+  padStart = from.padStart;
+  padSelect = from.padSelect;
+  hdmaRunning = from.hdmaRunning;
+ }
+
  /** Initialize IO to initial power on state */
  public void reset() {
   System.out.println("Hardware reset");
@@ -76,6 +90,13 @@ class IoHandler {
   hdmaRunning = false;
  }
 
+ /** Returns the buttons that are currently held down, as a combination of the PAD_ bits */
+ public int getPadMask() {
+  return (padRight ? PAD_RIGHT : 0) | (padLeft ? PAD_LEFT : 0) | (padUp ? PAD_UP : 0) |
+    (padDown ? PAD_DOWN : 0) | (padA ? PAD_A : 0) | (padB ? PAD_B : 0) |
+    (padSelect ? PAD_SELECT : 0) | (padStart ? PAD_START : 0);
+ }
+
  /** Press/release a Gameboy button by name */
  public void toggleKey(String keyName) {
 
@@ -159,19 +180,22 @@ class IoHandler {
      output |= 4;
     }
 
-    int cyclePos = dmgcpu.instrCount % dmgcpu.INSTRS_PER_HBLANK;
-    int sectionLength = dmgcpu.INSTRS_PER_HBLANK / 6;
+    // The scanline event is at the end of each line, so count back from it to find the
+    // position within the current line
+    int cyclePos = dmgcpu.CYCLES_PER_LINE -
+        (int) (dmgcpu.eventTime[Dmgcpu.EVENT_SCANLINE] - dmgcpu.cycleCount);
+    int speed = dmgcpu.CYCLES_PER_LINE / Dmgcpu.BASE_CYCLES_PER_LINE;
 
     if (JavaBoy.unsign(registers[0x44]) > 144) {
      output |= 1;
     } else {
-     if (cyclePos <= sectionLength * 3) {
-      // Mode 0
-     } else if (cyclePos <= sectionLength * 4) {
+     if (cyclePos < Dmgcpu.BASE_CYCLES_MODE_2 * speed) {
       // Mode 2
       output |= 2;
-     } else {
+     } else if (cyclePos < (Dmgcpu.BASE_CYCLES_MODE_2 + Dmgcpu.BASE_CYCLES_MODE_3) * speed) {
       output |= 3;
+     } else {
+      // Mode 0
      }
     }
 
@@ -183,6 +207,9 @@ class IoHandler {
 //    System.out.println("Checking LCDY at " + JavaBoy.hexWord(dmgcpu.pc));
 //    return registers[num];
 
+   case 0x04 :         // DIV
+    return (byte) dmgcpu.readDiv();
+
    case 0x55 :
     return (byte) (registers[0x55]);
 
@@ -223,36 +250,20 @@ class IoHandler {
 //  System.out.println("Write of register " + JavaBoy.hexByte(num) + " to " + JavaBoy.hexWord(data) + " at " + JavaBoy.hexWord(dmgcpu.pc));
  }
 
+  if ((num >= 0x40) && (num <= 0x4B) && (dmgcpu.graphicsChip.registerLatch != null)) {
+   dmgcpu.graphicsChip.registerLatch.write(JavaBoy.unsign(registers[0x44]), num, data);
+  }
+
   switch (num) {
    case 0x00 :           // FF00 - Joypad
     short output = 0x0F;
+    // While a movie is recording or playing, the buttons only change between frames
+    int pad = (dmgcpu.movie != null) ? dmgcpu.movie.padMask : getPadMask();
     if ((data & 0x10) == 0x00) {   // P14
-     if (padRight) {
-      output &= ~1;
-     }
-     if (padLeft) {
-      output &= ~2;
-     }
-     if (padUp) {
-      output &= ~4;
-     }
-     if (padDown) {
-      output &= ~8;
-     }
+     output &= ~(pad & 0x0F);
     }
     if ((data & 0x20) == 0x00) {   // P15
-     if (padA) {
-      output &= ~0x01;
-     }
-     if (padB) {
-      output &= ~0x02;
-     }
-     if (padSelect) {
-      output &= ~0x04;
-     }
-     if (padStart) {
-      output &= ~0x08;
-     }
+     output &= ~(pad >> 4);
     }
 	output |= (data & 0xF0);
     registers[0x00] = (byte) (output);
@@ -289,6 +300,7 @@ class IoHandler {
     break;
 
    case 0x04 :           // DIV
+    dmgcpu.resetDiv();
     registers[04] = 0;
     break;    
 
@@ -299,19 +311,20 @@ class IoHandler {
      dmgcpu.timaEnabled = true;
     }
 
-    int instrsPerSecond = dmgcpu.INSTRS_PER_VBLANK * 60;
+    int cyclesPerSecond = Dmgcpu.CYCLES_PER_SECOND;
     int clockFrequency = (data & 0x03);
 
     switch (clockFrequency) {
-     case 0: dmgcpu.instrsPerTima = (instrsPerSecond / 4096);
+     case 0: dmgcpu.cyclesPerTima = (cyclesPerSecond / 4096);
              break;
-     case 1: dmgcpu.instrsPerTima = (instrsPerSecond / 262144);
+     case 1: dmgcpu.cyclesPerTima = (cyclesPerSecond / 262144);
              break;
-     case 2: dmgcpu.instrsPerTima = (instrsPerSecond / 65536);
+     case 2: dmgcpu.cyclesPerTima = (cyclesPerSecond / 65536);
              break;
-     case 3: dmgcpu.instrsPerTima = (instrsPerSecond / 16384);
+     case 3: dmgcpu.cyclesPerTima = (cyclesPerSecond / 16384);
              break;
     }
+    dmgcpu.rescheduleEvents();
     break;
 
    case 0x10 :           // Sound channel 1, sweep
@@ -616,30 +629,22 @@ class IoHandler {
    case 0x47 :           // FF47 - BKG and WIN palette
 //    System.out.println("Palette created!");
     dmgcpu.graphicsChip.backgroundPalette.decodePalette(data);
-    if (registers[num] != (byte) data) {
-     registers[num] = (byte) data;
-     dmgcpu.graphicsChip.invalidateAll(GraphicsChip.TILE_BKG);
-    }
+    registers[num] = (byte) data;
     break;
    case 0x48 :           // FF48 - OBJ1 palette
     dmgcpu.graphicsChip.obj1Palette.decodePalette(data);
-    if (registers[num] != (byte) data) {
-     registers[num] = (byte) data;
-     dmgcpu.graphicsChip.invalidateAll(GraphicsChip.TILE_OBJ1);
-    }
+    registers[num] = (byte) data;
     break;
    case 0x49 :           // FF49 - OBJ2 palette
     dmgcpu.graphicsChip.obj2Palette.decodePalette(data);
-    if (registers[num] != (byte) data) {
-     registers[num] = (byte) data;
-     dmgcpu.graphicsChip.invalidateAll(GraphicsChip.TILE_OBJ2);
-    }
+    registers[num] = (byte) data;
     break;
 
    case 0x4F :
     if (dmgcpu.gbcFeatures) {
      dmgcpu.graphicsChip.tileStart = (data & 0x01) * 384;
      dmgcpu.graphicsChip.vidRamStart = (data & 0x01) * 0x2000;
+     dmgcpu.mapVideoRam();
     }
     registers[0x4F] = (byte) data;
     break;
@@ -682,7 +687,6 @@ class IoHandler {
      dmgcpu.graphicsChip.gbcBackground[palNumber].setGbcColours(
        (JavaBoy.unsign(registers[0x68]) & 0x06) >> 1,
        (JavaBoy.unsign(registers[0x68]) & 0x01) == 1, JavaBoy.unsign(data));
-     dmgcpu.graphicsChip.invalidateAll(palNumber * 4);
  
      if ((JavaBoy.unsign(registers[0x68]) & 0x80) != 0) {
       registers[0x68]++;
@@ -702,7 +706,6 @@ class IoHandler {
      dmgcpu.graphicsChip.gbcSprite[palNumber].setGbcColours(
        (JavaBoy.unsign(registers[0x6A]) & 0x06) >> 1,
        (JavaBoy.unsign(registers[0x6A]) & 0x01) == 1, JavaBoy.unsign(data));
-     dmgcpu.graphicsChip.invalidateAll((palNumber * 4) + 32);
 
      if ((JavaBoy.unsign(registers[0x6A]) & 0x80) != 0) {
       if ((registers[0x6A] & 0x3F) == 0x3F) {
@@ -724,6 +727,7 @@ class IoHandler {
      } else {
       dmgcpu.gbcRamBank = data & 0x07;
      }
+     dmgcpu.mapWorkRam();
     }
     registers[0x70] = (byte) data;
     break;
@@ -735,5 +739,21 @@ class IoHandler {
     break;
   }
  }
+
+ /** Writes the IO registers to a save state.  The state of the buttons isn't saved, as
+  *  it comes from the user.
+  */
+ public void saveState(ByteBuffer buffer) {
+  buffer.put(registers);
+  buffer.put((byte) (hdmaRunning ? 1 : 0));
+ }
+
+ /** Reads the IO registers from a save state.  Other objects that are set up by register
+  *  writes save their own state, so the writes aren't repeated.
+  */
+ public void loadState(ByteBuffer buffer) {
+  buffer.get(registers);
+  hdmaRunning = buffer.get() != 0;
+ }
 }
 
@@ -111,7 +111,7 @@ import javax.sound.sampled.*;
 
 
 
-public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener, WindowListener, MouseListener, ActionListener, ItemListener {
+public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener, WindowListener, MouseListener, ActionListener, ItemListener, FrameSink {
  private final int WIDTH = 160;
  private final int HEIGHT = 144;
  private final String WEBSITE_URL = "http://www.millstone.demon.co.uk/download/javaboy";
@@ -166,6 +166,9 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
  /** When emulation running, references the current graphics chip implementation */
  GraphicsChip graphicsChip;
 
+ /** Shows the frames from the graphics chip */
+ FramePresenter presenter = new FramePresenter();
+
  /** When connected to another computer or to a Game Boy printer, references the current Game link object */
  GameLink gameLink;
 
@@ -189,6 +192,12 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
  /** True when the debugger console interface is active */
  boolean debuggerActive = false;
 
+ /** File that the movie being recorded is written to when recording stops */
+ String movieFileName;
+
+ /** The quick save slots for the loaded ROM, opened when first used */
+ SaveSlots saveSlots;
+
  Image doubleBuffer;
 
  static int[] keyCodes = {38, 40, 37, 39, 90, 88, 10, 8};
@@ -247,8 +256,8 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
    int stripLength = 300;
 
    // Centre the GB image
-   int x = getSize().width / 2 - dmgcpu.graphicsChip.getWidth() / 2;
-   int y = getSize().height / 2 - dmgcpu.graphicsChip.getHeight() / 2;
+   int x = getSize().width / 2 - graphicsChip.getWidth() / 2;
+   int y = getSize().height / 2 - graphicsChip.getHeight() / 2;
 
    if ((stripTimer > stripLength) && (!fullFrame) && (!imageSizeChanged)) {
    /* if ((imageSizeChanged) || (fullFrame)) {
@@ -263,16 +272,16 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
 	 }
 	}*/
 	
-    dmgcpu.graphicsChip.draw(g, x, y, this);
+    drawFrame(g, x, y);
 	
    } else {
     Graphics bufferGraphics = doubleBuffer.getGraphics();
 
-    if (dmgcpu.graphicsChip.isFrameReady()) {
+    if (graphicsChip.isFrameReady()) {
      bufferGraphics.setColor(new Color(255, 255, 255));
  	 bufferGraphics.fillRect(0, 0, getSize().width, getSize().height);
 
-     dmgcpu.graphicsChip.draw(bufferGraphics, x, y, this);
+     drawFrame(bufferGraphics, x, y);
 
 
 	 int stripPos = getSize().height - 40;
@@ -307,7 +316,7 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
      stripTimer++;
  	 g.drawImage(doubleBuffer, 0, 0, this);
 	} else {
-     dmgcpu.graphicsChip.draw(bufferGraphics, x, y, this);
+     drawFrame(bufferGraphics, x, y);
     }
 
    } 
@@ -388,7 +397,7 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
 
 
    try {
-    dmgcpu.cartridge.saveBatteryRAMToWeb(new URL(getParameter("SAVERAMURL")), getParameter("USERNAME"), dmgcpu);
+    new WebSaveRAM(new URL(getParameter("SAVERAMURL")), true, dmgcpu.cartridge, dmgcpu, getParameter("USERNAME"));
    } catch (MalformedURLException ex) {
 
    }
@@ -400,7 +409,7 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
   } else if (e.getActionCommand().equals("Load")) {
    try {
 //    dmgcpu.terminateProcess();
-    dmgcpu.cartridge.loadBatteryRAMFromWeb(new URL(getParameter("LOADRAMURL")), getParameter("USERNAME"), dmgcpu);
+    new WebSaveRAM(new URL(getParameter("LOADRAMURL")), false, dmgcpu.cartridge, dmgcpu, getParameter("USERNAME"));
 //	do {
   //   java.lang.Thread.sleep(1);
  	//} while (!dmgcpu.cartridge.needsResetEnable());
@@ -457,6 +466,27 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
   repaint();
  }
 
+ /** Creates the graphics chip that draws into the applet */
+ public GraphicsChip createGraphicsChip(Dmgcpu d) {
+  graphicsChip = new ScanlineGraphicsChip(d);
+  return graphicsChip;
+ }
+
+ /** Shows the graphics chip's latest frame, if there is a new one, and lets the CPU carry on */
+ void drawFrame(Graphics g, int x, int y) {
+  if (graphicsChip.startFrame()) {
+   presenter.draw(g, graphicsChip, x, y);
+  }
+  graphicsChip.frameDone = true;
+ }
+
+ /** Redraws the applet, and waits until the new frame has been drawn */
+ public void frameReady(GraphicsChip chip) {
+  graphicsChip.frameDone = false;
+  drawNextFrame();
+  graphicsChip.waitForDraw();
+ }
+
  public void keyTyped(KeyEvent e) {
  }
 
@@ -466,42 +496,42 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
   if (key == keyCodes[0]) {
 //   if (!dmgcpu.ioHandler.padUp) {
     dmgcpu.ioHandler.padUp = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[1]) {
 //   if (!dmgcpu.ioHandler.padDown) {
     dmgcpu.ioHandler.padDown = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[2]) {
 //   if (!dmgcpu.ioHandler.padLeft) {
     dmgcpu.ioHandler.padLeft = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[3]) {
 //   if (!dmgcpu.ioHandler.padRight) {
     dmgcpu.ioHandler.padRight = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[4]) {
 //   if (!dmgcpu.ioHandler.padA) {
     dmgcpu.ioHandler.padA = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[5]) {
 //   if (!dmgcpu.ioHandler.padB) {
     dmgcpu.ioHandler.padB = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[6]) {
 //   if (!dmgcpu.ioHandler.padStart) {
     dmgcpu.ioHandler.padStart = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   } else if (key == keyCodes[7]) {
 //   if (!dmgcpu.ioHandler.padSelect) {
     dmgcpu.ioHandler.padSelect = true;
-    dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+    dmgcpu.joypadChanged();
 //   }
   }
 
@@ -516,6 +546,21 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
                             if (runningAsApplet)
                              showStatus("Frameskip now " + dmgcpu.graphicsChip.frameSkip);
                             break;
+   case KeyEvent.VK_F3    : if (!runningAsApplet) {
+                             queueDebuggerCommand("z s 0;g");
+                             dmgcpu.terminate = true;
+                            }
+                            break;
+   case KeyEvent.VK_F4    : if (!runningAsApplet) {
+                             queueDebuggerCommand("z l 0;g");
+                             dmgcpu.terminate = true;
+                            }
+                            break;
+   case KeyEvent.VK_F6    : if ((!runningAsApplet) && (dmgcpu.rewindBuffer != null)) {
+                             queueDebuggerCommand("u 3C;g");
+                             dmgcpu.terminate = true;
+                            }
+                            break;
    case KeyEvent.VK_F5    : dmgcpu.terminateProcess();
                             activateDebugger();
                             System.out.println("- Break into debugger");
@@ -528,28 +573,28 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
 
   if (key == keyCodes[0]) {
    dmgcpu.ioHandler.padUp = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[1]) {
    dmgcpu.ioHandler.padDown = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[2]) {
    dmgcpu.ioHandler.padLeft = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[3]) {
    dmgcpu.ioHandler.padRight = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[4]) {
    dmgcpu.ioHandler.padA = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[5]) {
    dmgcpu.ioHandler.padB = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[6]) {
    dmgcpu.ioHandler.padStart = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   } else if (key == keyCodes[7]) {
    dmgcpu.ioHandler.padSelect = false;
-   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+   dmgcpu.joypadChanged();
   }
  }
 
@@ -567,6 +612,23 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
   System.out.println("p len                 Disassemble len instructions starting at current PC");
   System.out.println("n                     Show interrupt state");
   System.out.println("n 1|0                 Enable/disable interrupts");
+  System.out.println("j                     Show recompiler state");
+  System.out.println("j 1|0                 Enable/disable recompiler");
+  System.out.println("l                     Show idle loop skipping state");
+  System.out.println("l 1|0                 Enable/disable idle loop skipping");
+  System.out.println("f                     Show emulation speed");
+  System.out.println("f speed               Set speed to 1, 2, 4 or 8x normal, or 0 for unlimited");
+  System.out.println("x                     Show deterministic mode state");
+  System.out.println("x 1|0                 Enable/disable deterministic mode");
+  System.out.println("v                     Show movie state");
+  System.out.println("v r file              Record a movie of the joypad into file");
+  System.out.println("v p file              Play back the movie in file");
+  System.out.println("v s                   Stop recording or playing the movie");
+  System.out.println("z s|l slot            Save/load the state in a quick save slot");
+  System.out.println("z                     Show which quick save slots are used");
+  System.out.println("w                     Show rewind buffer state");
+  System.out.println("w 1|0                 Enable/disable rewind buffer");
+  System.out.println("u [len]               Rewind len frames [3C]");
   System.out.println("t [len]               Execute len instructions starting at current PC [1]");
   System.out.println("g                     Execute forever");
   System.out.println("o                     Output Gameboy screen to applet window");
@@ -863,6 +925,174 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
          if (dmgcpu.interruptsEnabled) System.out.println("enabled.");
                                   else System.out.println("disabled.");
 
+         break;
+    case 'j' :
+         try {
+          int state = Integer.valueOf(st.nextToken(), 16).intValue();
+          dmgcpu.setRecompilerEnabled(state == 1);
+         } catch (java.util.NoSuchElementException e) {
+          // Nothing!
+         } catch (NumberFormatException e) {
+          System.out.println("Error parsing hex value.");
+         }
+         System.out.print("- Recompiler is ");
+         if (dmgcpu.recompiler != null) System.out.println("enabled, " + dmgcpu.recompiler.getInfo() + ".");
+                                   else System.out.println("disabled.");
+         break;
+    case 'l' :
+         try {
+          int state = Integer.valueOf(st.nextToken(), 16).intValue();
+          dmgcpu.idleLoopSkipping = (state == 1);
+         } catch (java.util.NoSuchElementException e) {
+          // Nothing!
+         } catch (NumberFormatException e) {
+          System.out.println("Error parsing hex value.");
+         }
+         System.out.print("- Idle loop skipping is ");
+         if (dmgcpu.idleLoopSkipping) System.out.print("enabled");
+                                 else System.out.print("disabled");
+         System.out.println(", " + dmgcpu.idleCyclesSkipped + " cycles skipped.");
+         break;
+    case 'f' :
+         try {
+          int speed = Integer.valueOf(st.nextToken(), 16).intValue();
+          if (!dmgcpu.setSpeed(speed)) {
+           System.out.println("- Speed must be 1, 2, 4 or 8x normal, or 0 for unlimited");
+          }
+         } catch (java.util.NoSuchElementException e) {
+          // Nothing!
+         } catch (NumberFormatException e) {
+          System.out.println("Error parsing hex value.");
+         }
+         if (dmgcpu.throttlePolicy instanceof SpeedGovernor) {
+          int speed = ((SpeedGovernor) dmgcpu.throttlePolicy).getMultiplier();
+          if (speed == SpeedGovernor.UNLIMITED) System.out.print("- Speed is unlimited");
+                                           else System.out.print("- Speed is " + speed + "x");
+          System.out.println(", achieved " + Math.round(dmgcpu.getSpeedRatio() * 100) + "% last second.");
+         } else {
+          System.out.println("- Speed is not throttled.");
+         }
+         break;
+    case 'x' :
+         try {
+          int state = Integer.valueOf(st.nextToken(), 16).intValue();
+          dmgcpu.setDeterministic(state == 1);
+         } catch (java.util.NoSuchElementException e) {
+          // Nothing!
+         } catch (NumberFormatException e) {
+          System.out.println("Error parsing hex value.");
+         }
+         System.out.print("- Deterministic mode is ");
+         if (dmgcpu.deterministic) System.out.println("enabled.");
+                              else System.out.println("disabled.");
+         break;
+    case 'w' :
+         try {
+          int state = Integer.valueOf(st.nextToken(), 16).intValue();
+          if (state == 1) {
+           if (dmgcpu.rewindBuffer == null) dmgcpu.rewindBuffer = new RewindBuffer();
+          } else {
+           dmgcpu.rewindBuffer = null;
+          }
+         } catch (java.util.NoSuchElementException e) {
+          // Nothing!
+         } catch (NumberFormatException e) {
+          System.out.println("Error parsing hex value.");
+         }
+         System.out.print("- Rewind buffer is ");
+         if (dmgcpu.rewindBuffer != null) System.out.println("enabled, " + dmgcpu.rewindBuffer.getFrames() + " frames in " + dmgcpu.rewindBuffer.getBytesUsed() + " bytes.");
+                                      else System.out.println("disabled.");
+         break;
+    case 'u' :
+         if (dmgcpu.rewindBuffer == null) {
+          System.out.println("- Rewind buffer is disabled");
+          break;
+         }
+         try {
+          int frames = 0x3C;
+          if (st.hasMoreTokens()) frames = Integer.valueOf(st.nextToken(), 16).intValue();
+          int rewound = dmgcpu.rewindBuffer.rewind(dmgcpu, frames);
+          if (rewound == -1) {
+           System.out.println("- Nothing to rewind to");
+          } else {
+           System.out.println("- Rewound " + JavaBoy.hexWord(rewound) + " frames");
+          }
+         } catch (NumberFormatException e) {
+          System.out.println("Error parsing hex value.");
+         }
+         break;
+    case 'v' :
+         if (st.hasMoreTokens()) {
+          String action = st.nextToken();
+          if (dmgcpu.movie != null) {
+           boolean wasRecording = dmgcpu.movie.recording;
+           Movie movie = dmgcpu.movie;
+           movie.stop(dmgcpu);
+           if (wasRecording) {
+            try {
+             FileOutputStream os = new FileOutputStream(movieFileName);
+             movie.writeTo(os);
+             os.close();
+             System.out.println("- Wrote " + movie.frames + " frames to '" + movieFileName + "'");
+            } catch (IOException e) {
+             System.out.println("Error writing movie to '" + movieFileName + "'");
+            }
+           }
+          }
+          try {
+           if (action.equals("r")) {
+            movieFileName = st.nextToken();
+            new Movie().record(dmgcpu);
+           } else if (action.equals("p")) {
+            String fileName = st.nextToken();
+            Movie movie = new Movie();
+            FileInputStream is = new FileInputStream(fileName);
+            if (!movie.readFrom(is)) {
+             System.out.println("'" + fileName + "' is not a movie file");
+            } else {
+             movie.play(dmgcpu);
+            }
+            is.close();
+           }
+          } catch (java.util.NoSuchElementException e) {
+           System.out.println("Invalid number of parameters to 'v' command.");
+          } catch (IOException e) {
+           System.out.println("Error reading movie: " + e);
+          }
+         }
+         System.out.print("- Movie is ");
+         if (dmgcpu.movie == null) System.out.println("stopped.");
+         else if (dmgcpu.movie.recording) System.out.println("recording to '" + movieFileName + "'.");
+         else System.out.println("playing, " + dmgcpu.movie.frames + " frames.");
+         break;
+    case 'z' :
+         if (getSaveSlots() == null) break;
+         if (st.hasMoreTokens()) {
+          try {
+           String action = st.nextToken();
+           int slot = Integer.valueOf(st.nextToken(), 16).intValue();
+           if ((slot < 0) || (slot >= SaveSlots.NUM_SLOTS)) {
+            System.out.println("- Slot must be between 0 and " + (SaveSlots.NUM_SLOTS - 1));
+           } else if (action.equals("s")) {
+            saveSlots.save(slot, dmgcpu);
+            System.out.println("- Saved state to slot " + slot);
+           } else if (action.equals("l")) {
+            if (saveSlots.load(slot, dmgcpu)) {
+             System.out.println("- Loaded state from slot " + slot);
+            }
+           }
+          } catch (java.util.NoSuchElementException e) {
+           System.out.println("Invalid number of parameters to 'z' command.");
+          } catch (NumberFormatException e) {
+           System.out.println("Error parsing hex value.");
+          }
+         } else {
+          System.out.print("- Slots used in '" + saveSlots.fileName + "':");
+          for (int r = 0; r < SaveSlots.NUM_SLOTS; r++) {
+           if (saveSlots.isUsed(r)) System.out.print(" " + r);
+          }
+          System.out.println();
+         }
          break;
     case 'm' :
          try {
@@ -968,7 +1198,10 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
   System.out.println("JavaBoy (tm) Version " + versionString + " (c) 2005 Neil Millstone (applet)");
 	
 
-  cartridge = new Cartridge(getParameter("ROMIMAGE"), this);
+  cartridge = new Cartridge(getParameter("ROMIMAGE"), getDocumentBase());
+  if ((!cartridge.cartridgeReady) && (cartridge.loadMessage != null)) {
+   new ModalDialog(null, cartridge.loadMessage[0], cartridge.loadMessage[1], cartridge.loadMessage[2]);
+  }
   dmgcpu = new Dmgcpu(cartridge, null, this);
   dmgcpu.graphicsChip.setMagnify(getSize().width / 160);
   this.requestFocus();
@@ -1044,10 +1277,38 @@ public class JavaBoy extends java.applet.Applet implements Runnable, KeyListener
   System.out.println("Thread terminated");
  }
 
+ /** Returns the quick save slots for the loaded ROM, opening them if a different ROM was
+  *  loaded since they were last used.  Returns null if they can't be opened.
+  */
+ SaveSlots getSaveSlots() {
+  if ((saveSlots != null) && (saveSlots.romFileName.equals(cartridge.romFileName))) {
+   return saveSlots;
+  }
+  if (saveSlots != null) {
+   saveSlots.close();
+   saveSlots = null;
+  }
+  if (runningAsApplet) {
+   System.out.println("- Save slots aren't available in an applet");
+   return null;
+  }
+  try {
+   saveSlots = new SaveSlots(cartridge.romFileName, cartridge.calculateChecksum());
+  } catch (IOException e) {
+   System.out.println("Error opening save slots: " + e);
+  }
+  return saveSlots;
+ }
+
  /** Free up allocated memory */
  public void dispose() {
+  if (saveSlots != null) {
+   saveSlots.close();
+   saveSlots = null;
+  }
   if (cartridge != null) cartridge.dispose();
   if (dmgcpu != null) dmgcpu.dispose();
+  presenter.dispose();
  }
 
  public void init() {
@@ -44,11 +44,6 @@ import javax.sound.sampled.*;
 /** This class implements a dialog box with some text and an OK button.  It is used for error 
   *  messages and confirmation messages. */
   
-interface DialogListener {
- void yesPressed();
- void noPressed();
-}
-
 class ModalDialog implements ActionListener 
 { 
   Frame dialog; 
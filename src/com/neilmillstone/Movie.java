@@ -0,0 +1,316 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** A recording of the joypad, one mask of held buttons per frame, that can be played back to
+ *  repeat a run exactly.  A movie starts from a save state taken when recording began, and is
+ *  recorded and played in deterministic mode, so playing it back gives the same frames as the
+ *  original run.  While a movie is active, the buttons the game sees only change between frames.
+ *  <P>
+ *  The masks are stored run length encoded, as a mask byte followed by the number of frames it
+ *  was held for, written seven bits at a time.  The file is a header of magic number, version,
+ *  ROM checksum and frame count, then the start state and the encoded masks.  It is compressed
+ *  with GZIP, which squeezes the start state down to a few kilobytes.
+ */
+class Movie {
+ /** 'JBMV' */
+ static final int MAGIC = 0x4A424D56;
+ static final int VERSION = 1;
+
+ /** The buttons held during the current frame, as IoHandler.PAD_ bits */
+ int padMask;
+
+ /** Checksum of the ROM the movie was recorded on, from Cartridge.calculateChecksum() */
+ int romChecksum;
+
+ /** The machine state at the first frame */
+ SaveState start = new SaveState();
+
+ /** Run length encoded masks */
+ byte[] data = new byte[0x1000];
+ int length = 0;
+
+ /** Total number of frames in the movie */
+ int frames = 0;
+
+ /** True while recording, false while playing back */
+ boolean recording;
+
+ /** The run currently being recorded */
+ int runMask;
+ int runLength;
+
+ /** Playback position: the next byte of data to decode, and the frames left in the current run */
+ int readPos;
+ int runLeft;
+
+ /** Playback ends the emulation when it runs out of frames, rather than handing back to the
+  *  keyboard.
+  */
+ boolean stopAtEnd = false;
+
+ /** The throttle in use before playback started, put back when it finishes */
+ ThrottlePolicy savedThrottle;
+
+ /** Starts recording the joypad from the machine's current state.  Turns on deterministic mode. */
+ public void record(Dmgcpu dmgcpu) {
+  dmgcpu.setDeterministic(true);
+  romChecksum = dmgcpu.cartridge.calculateChecksum();
+  start.save(dmgcpu);
+  length = 0;
+  frames = 0;
+  recording = true;
+  padMask = dmgcpu.ioHandler.getPadMask();
+  runMask = padMask;
+  runLength = 1;
+  dmgcpu.movie = this;
+ }
+
+ /** Starts playing the movie back, flat out and only showing frames at the normal rate.
+  *  Returns false, leaving the machine alone, if the movie was recorded on a different ROM or
+  *  its start state can't be loaded.
+  */
+ public boolean play(Dmgcpu dmgcpu) {
+  return play(dmgcpu, true);
+ }
+
+ /** Starts playing the movie back.  If loadStart is false, playback starts from the machine's
+  *  current state, which must already be the movie's start state in deterministic mode, for
+  *  example a fork of the machine the start state was loaded into.
+  */
+ public boolean play(Dmgcpu dmgcpu, boolean loadStart) {
+  if (dmgcpu.cartridge.calculateChecksum() != romChecksum) {
+   System.out.println("Movie was recorded with a different ROM");
+   return false;
+  }
+  if (loadStart) {
+   if (!start.load(dmgcpu)) {
+    System.out.println("Movie start state is not valid");
+    return false;
+   }
+   // The start state was saved in deterministic mode, so its clock already counts emulated
+   // time.  Switch over without setDeterministic(), which would reset it.
+   dmgcpu.deterministic = true;
+   dmgcpu.cartridge.timeSource = new EmulatedTimeSource(dmgcpu);
+  }
+  recording = false;
+  readPos = 0;
+  runLeft = 0;
+  savedThrottle = dmgcpu.throttlePolicy;
+  dmgcpu.throttlePolicy = new SpeedGovernor(SpeedGovernor.UNLIMITED);
+  dmgcpu.movie = this;
+  padMask = (length > 0) ? (data[0] & 0xFF) : 0;    // The first frame's buttons aren't a change
+  nextFrame(dmgcpu);
+  return true;
+ }
+
+ /** Stops recording or playback */
+ public void stop(Dmgcpu dmgcpu) {
+  if (recording) {
+   flushRun();
+   recording = false;
+  } else {
+   dmgcpu.throttlePolicy = savedThrottle;
+   if (dmgcpu.throttlePolicy != null) dmgcpu.throttlePolicy.reset();
+  }
+  if (dmgcpu.movie == this) dmgcpu.movie = null;
+ }
+
+ /** Called by the CPU at the end of each frame to record or play the mask for the next one */
+ public final void frame(Dmgcpu dmgcpu) {
+  if (recording) {
+   int mask = dmgcpu.ioHandler.getPadMask();
+   if (mask != runMask) {
+    flushRun();
+    runMask = mask;
+   }
+   runLength++;
+   setPadMask(dmgcpu, mask);
+  } else {
+   nextFrame(dmgcpu);
+  }
+ }
+
+ /** Reads the mask for the next frame of playback, or finishes playback at the end */
+ void nextFrame(Dmgcpu dmgcpu) {
+  if (runLeft == 0) {
+   if (readPos >= length) {
+    System.out.println("Movie finished after " + frames + " frames");
+    stop(dmgcpu);
+    if (stopAtEnd) dmgcpu.terminate = true;
+    return;
+   }
+   int mask = data[readPos++] & 0xFF;
+   runLeft = readNumber();
+   setPadMask(dmgcpu, mask);
+  }
+  runLeft--;
+ }
+
+ /** Changes the buttons the game sees, raising the joypad interrupt if any have changed */
+ void setPadMask(Dmgcpu dmgcpu, int mask) {
+  if (mask != padMask) {
+   padMask = mask;
+   dmgcpu.triggerInterruptIfEnabled(dmgcpu.INT_P10);
+  }
+ }
+
+ /** Adds the current run to the encoded masks */
+ void flushRun() {
+  if (runLength == 0) return;
+  if (length + 6 > data.length) {
+   byte[] bigger = new byte[data.length * 2];
+   System.arraycopy(data, 0, bigger, 0, length);
+   data = bigger;
+  }
+  data[length++] = (byte) runMask;
+  length = ZeroRunCodec.writeNumber(data, length, runLength);
+  frames += runLength;
+  runLength = 0;
+ }
+
+ /** Reads a number written by ZeroRunCodec.writeNumber() from the encoded masks */
+ int readNumber() {
+  int value = 0;
+  int shift = 0;
+  int b;
+  do {
+   b = data[readPos++];
+   value |= (b & 0x7F) << shift;
+   shift += 7;
+  } while ((b & 0x80) != 0);
+  return value;
+ }
+
+ /** Writes the movie to a stream.  Recording must have been stopped. */
+ public void writeTo(OutputStream os) throws IOException {
+  GZIPOutputStream gz = new GZIPOutputStream(os);
+  DataOutputStream out = new DataOutputStream(gz);
+  out.writeInt(MAGIC);
+  out.writeInt(VERSION);
+  out.writeInt(romChecksum);
+  out.writeInt(frames);
+  out.writeInt(start.buffer.limit());
+  out.write(start.buffer.array(), 0, start.buffer.limit());
+  out.writeInt(length);
+  out.write(data, 0, length);
+  out.flush();
+  gz.finish();
+ }
+
+ /** Reads a movie from a stream.  Returns false if it isn't a movie this version can play, and
+  *  throws IOException if the masks are cut off or don't add up to the frame count.
+  */
+ public boolean readFrom(InputStream is) throws IOException {
+  DataInputStream in = new DataInputStream(new GZIPInputStream(is));
+  if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+   return false;
+  }
+  romChecksum = in.readInt();
+  frames = in.readInt();
+  int stateLength = in.readInt();
+  if ((stateLength < 0) || (stateLength > SaveState.MAX_SIZE)) {
+   return false;
+  }
+  start.buffer.clear();
+  in.readFully(start.buffer.array(), 0, stateLength);
+  start.buffer.limit(stateLength);
+  length = in.readInt();
+  // Each run is a mask byte and a number of at most five bytes, and is at least one frame long
+  if ((frames < 0) || (length < 0) || (length > frames * 6L)) {
+   return false;
+  }
+  // The length can't be trusted until the data has arrived, so the array only grows as it is read
+  data = new byte[Math.min(length, 0x1000)];
+  int read = 0;
+  while (read < length) {
+   if (read == data.length) {
+    byte[] bigger = new byte[(int) Math.min((long) data.length * 2, length)];
+    System.arraycopy(data, 0, bigger, 0, read);
+    data = bigger;
+   }
+   int count = in.read(data, read, data.length - read);
+   if (count == -1) throw new EOFException("Movie data is cut off");
+   read += count;
+  }
+  if (!runsValid()) {
+   throw new IOException("Movie data is corrupt");
+  }
+  return true;
+ }
+
+ /** Returns true if the encoded masks are whole runs of at least one frame, which add up to the
+  *  frame count
+  */
+ boolean runsValid() {
+  long total = 0;
+  int pos = 0;
+  while (pos < length) {
+   pos++;    // The mask
+   int value = 0;
+   int shift = 0;
+   int b;
+   do {
+    if ((pos >= length) || (shift > 28)) return false;
+    b = data[pos++];
+    value |= (b & 0x7F) << shift;
+    shift += 7;
+   } while ((b & 0x80) != 0);
+   if (value <= 0) return false;
+   total += value;
+  }
+  return total == frames;
+ }
+
+ /** Plays a movie back with no display or sound, as fast as possible, and reports the speed.
+  *  Usage: Movie romfile moviefile
+  */
+ public static void main(String[] args) throws IOException {
+  if (args.length < 2) {
+   System.out.println("Usage: Movie romfile moviefile");
+   return;
+  }
+  Cartridge cartridge = new Cartridge(args[0], null, false);    // Don't touch the battery RAM file
+  Dmgcpu dmgcpu = new Dmgcpu(cartridge, null, new HeadlessFrameSink());
+  dmgcpu.soundChip = null;
+
+  Movie movie = new Movie();
+  FileInputStream is = new FileInputStream(args[1]);
+  boolean valid = movie.readFrom(is);
+  is.close();
+  if (!valid) {
+   System.out.println("'" + args[1] + "' is not a movie file");
+   return;
+  }
+
+  movie.stopAtEnd = true;
+  if (!movie.play(dmgcpu)) return;
+  long startTime = System.currentTimeMillis();
+  dmgcpu.execute(-1);
+  long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+  System.out.println(movie.frames + " frames in " + elapsed + "ms, " + (movie.frames * 1000L / elapsed) + " fps");
+ }
+}
@@ -25,9 +25,9 @@ import java.awt.*;
 import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.applet.*;
 import java.net.*;
-import java.util.Random;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowListener;
 import java.awt.event.ActionListener;
@@ -81,8 +81,14 @@ class NoiseGenerator {
 
  int counterEnvelope;
 
- /** Stores the random values emulating the polynomial generator (badly!) */
- boolean randomValues[];
+ /** Output of the polynomial generator over one period, in 15 bit and 7 bit mode.  Both are
+  *  fixed, so the noise is the same on every run.
+  */
+ static final boolean[] LONG_SEQUENCE = lfsrSequence(15);
+ static final boolean[] SHORT_SEQUENCE = lfsrSequence(7);
+
+ /** The sequence currently being played */
+ boolean randomValues[] = LONG_SEQUENCE;
 
  int dividingRatio;
  int polynomialSteps;
@@ -98,17 +104,6 @@ class NoiseGenerator {
   channel = chan;
   sampleRate = rate;
   cycleOffset = 0;
-
-   randomValues = new boolean[32767];
-
-  Random rand = new java.util.Random();
-
-  
-  for (int r = 0; r < 32767; r++) {
-	randomValues[r] = rand.nextBoolean();
-  }
-
-  cycleOffset = 0;
 }
 
  /** Creates a white noise generator with the specified sample rate */
@@ -119,17 +114,22 @@ class NoiseGenerator {
   totalLength = 0;
   sampleRate = rate;
   amplitude = 32;
+  cycleOffset = 0;
+ }
 
-  randomValues = new boolean[32767];
-
-  Random rand = new java.util.Random();
-
-  
-  for (int r = 0; r < 32767; r++) {
-	randomValues[r] = rand.nextBoolean();
+ /** Runs a linear feedback shift register of the specified width through one whole period, in
+  *  the same way as the Gameboy's: bits 0 and 1 are XORed together and shifted in at the top.
+  *  The output is the inverse of bit 0.
+  */
+ static boolean[] lfsrSequence(int bits) {
+  boolean[] sequence = new boolean[(1 << bits) - 1];
+  int lfsr = (1 << bits) - 1;
+  for (int r = 0; r < sequence.length; r++) {
+   sequence[r] = (lfsr & 1) == 0;
+   int feedback = (lfsr ^ (lfsr >> 1)) & 1;
+   lfsr = (lfsr >> 1) | (feedback << (bits - 1));
   }
-
-  cycleOffset = 0;
+  return sequence;
  }
 
 
@@ -162,17 +162,14 @@ class NoiseGenerator {
  public void setParameters(float dividingRatio, boolean polynomialSteps, int shiftClockFreq) {
   this.dividingRatio = (int) dividingRatio;
   if (!polynomialSteps) {
-   this.polynomialSteps = 32767;
-   cycleLength = 32767 << 8;
-   cycleOffset = 0;
+   this.polynomialSteps = LONG_SEQUENCE.length;
+   randomValues = LONG_SEQUENCE;
   } else {
-   this.polynomialSteps = 63;
-   cycleLength = 63 << 8;
-
-   java.util.Random rand = new java.util.Random();
-
-   cycleOffset = (int) (rand.nextFloat() * 1000);
+   this.polynomialSteps = SHORT_SEQUENCE.length;
+   randomValues = SHORT_SEQUENCE;
   }
+  cycleLength = this.polynomialSteps << 8;
+  cycleOffset = 0;
   this.shiftClockFreq = shiftClockFreq;
 
   if (dividingRatio == 0) dividingRatio = 0.5f;
@@ -206,7 +203,7 @@ class NoiseGenerator {
   // System.out.println("Step=" + step);
 
    for (int r = offset; r < offset + length; r++) {
-	boolean value = randomValues[((cycleOffset ) + (cyclePos >> 8)) & 0x7FFF];
+	boolean value = randomValues[((cycleOffset ) + (cyclePos >> 8)) % randomValues.length];
 	int v = value? (amplitude / 2): (-amplitude / 2);
 
     if ((channel & CHAN_LEFT) != 0) b[r * 2] += v;
@@ -232,4 +229,42 @@ class NoiseGenerator {
   }
  }
 
+ /** Writes the state of the generator to a save state.  The sequence being played is worked
+  *  out from polynomialSteps.
+  */
+ public void saveState(ByteBuffer buffer) {
+  buffer.putInt(totalLength);
+  buffer.putInt(cyclePos);
+  buffer.putInt(cycleLength);
+  buffer.putInt(amplitude);
+  buffer.putInt(channel);
+  buffer.putInt(initialEnvelope);
+  buffer.putInt(numStepsEnvelope);
+  buffer.put((byte) (increaseEnvelope ? 1 : 0));
+  buffer.putInt(counterEnvelope);
+  buffer.putInt(dividingRatio);
+  buffer.putInt(polynomialSteps);
+  buffer.putInt(shiftClockFreq);
+  buffer.putInt(finalFreq);
+  buffer.putInt(cycleOffset);
+ }
+
+ /** Reads the state of the generator from a save state */
+ public void loadState(ByteBuffer buffer) {
+  totalLength = buffer.getInt();
+  cyclePos = buffer.getInt();
+  cycleLength = buffer.getInt();
+  amplitude = buffer.getInt();
+  channel = buffer.getInt();
+  initialEnvelope = buffer.getInt();
+  numStepsEnvelope = buffer.getInt();
+  increaseEnvelope = buffer.get() != 0;
+  counterEnvelope = buffer.getInt();
+  dividingRatio = buffer.getInt();
+  polynomialSteps = buffer.getInt();
+  shiftClockFreq = buffer.getInt();
+  finalFreq = buffer.getInt();
+  cycleOffset = buffer.getInt();
+  randomValues = (polynomialSteps == SHORT_SEQUENCE.length) ? SHORT_SEQUENCE : LONG_SEQUENCE;
+ }
 }
@@ -0,0 +1,160 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Keeps track of how often each address in ROM is executed, and translates the busiest blocks
+ *  of code into Java classes using the BlockCompiler.  Compiled blocks are kept per ROM bank,
+ *  indexed by their address within the bank.  Slot 0 holds code executed at 0x0000 - 0x3FFF,
+ *  and slot n + 1 holds code executed from bank n at 0x4000 - 0x7FFF.<br>
+ *  <br>
+ *  Each slot has its own class loader, so that when a slot is discarded the JVM can unload its
+ *  classes.  Only a limited number of switchable banks are kept, and the one that was mapped in
+ *  least recently is discarded to make room for another.
+ */
+class Recompiler {
+
+ /** Number of times an address must be executed before a block is compiled starting there */
+ static final int COMPILE_THRESHOLD = 1000;
+
+ /** Maximum number of slots that can hold compiled blocks at once */
+ static final int MAX_SLOTS = 32;
+
+ /** Hotness value for addresses where no block could be compiled */
+ static final int NOT_COMPILABLE = Integer.MIN_VALUE;
+
+ Cartridge cartridge;
+ BlockCompiler compiler;
+
+ /** Compiled blocks and execution counts for each slot.  Null for slots not in use. */
+ CompiledBlock[][] blocks;
+ int[][] hotness;
+ BlockClassLoader[] loaders;
+
+ /** When each slot's bank was last mapped in, used to choose which slot to discard */
+ long[] lastMapped;
+ long mapCount = 0;
+
+ int slotsInUse = 0;
+ int numBlocks = 0;
+
+ /** Create a recompiler for code in the specified cartridge.  Throws a SecurityException if
+  *  class loaders can't be created, e.g. when running as an applet.
+  */
+ public Recompiler(Cartridge cartridge) {
+  this.cartridge = cartridge;
+  compiler = new BlockCompiler(cartridge.rom);
+  blocks = new CompiledBlock[cartridge.numBanks + 1][];
+  hotness = new int[cartridge.numBanks + 1][];
+  loaders = new BlockClassLoader[cartridge.numBanks + 1];
+  lastMapped = new long[cartridge.numBanks + 1];
+  loaders[0] = new BlockClassLoader();
+ }
+
+ /** Returns the compiled block that starts at the specified address in ROM, or null if there
+  *  isn't one.  The block is compiled once the address has been executed often enough.
+  */
+ public final CompiledBlock getBlock(int pc) {
+  int slot = 0;
+  int addr = pc;
+  if (pc >= 0x4000) {
+   slot = cartridge.currentBank + 1;
+   addr -= 0x4000;
+  }
+
+  CompiledBlock[] slotBlocks = blocks[slot];
+  if (slotBlocks == null) {
+   slotBlocks = allocateSlot(slot);
+  }
+
+  CompiledBlock block = slotBlocks[addr];
+  if ((block == null) && (++hotness[slot][addr] == COMPILE_THRESHOLD)) {
+   block = compiler.compile((slot == 0) ? 0 : slot - 1, pc, loaders[slot]);
+   if (block == null) {
+    hotness[slot][addr] = NOT_COMPILABLE;
+   } else {
+    slotBlocks[addr] = block;
+    numBlocks++;
+   }
+  }
+  return block;
+ }
+
+ CompiledBlock[] allocateSlot(int slot) {
+  if (slotsInUse >= MAX_SLOTS) {
+   discardOldestSlot();
+  }
+  blocks[slot] = new CompiledBlock[0x4000];
+  hotness[slot] = new int[0x4000];
+  if (loaders[slot] == null) {
+   loaders[slot] = new BlockClassLoader();
+  }
+  lastMapped[slot] = ++mapCount;
+  slotsInUse++;
+  return blocks[slot];
+ }
+
+ /** Discards the blocks for the switchable bank that was mapped in least recently */
+ void discardOldestSlot() {
+  int oldest = -1;
+  for (int r = 1; r < blocks.length; r++) {
+   if ((blocks[r] != null) && (r != cartridge.currentBank + 1) &&
+       ((oldest == -1) || (lastMapped[r] < lastMapped[oldest]))) {
+    oldest = r;
+   }
+  }
+  if (oldest != -1) {
+   discardSlot(oldest);
+  }
+ }
+
+ void discardSlot(int slot) {
+  if (blocks[slot] == null) return;
+  blocks[slot] = null;
+  hotness[slot] = null;
+  loaders[slot] = null;
+  slotsInUse--;
+ }
+
+ /** Called by the cartridge when a bank is mapped in at 0x4000 */
+ public void bankMapped(int bank) {
+  if (bank + 1 < lastMapped.length) {
+   lastMapped[bank + 1] = ++mapCount;
+  }
+ }
+
+ /** Discards compiled code from the bank containing the specified ROM offset, after the debugger
+  *  has modified it
+  */
+ public void invalidate(int romAddr) {
+  int bank = romAddr / 0x4000;
+  discardSlot(bank + 1);
+  if (bank == 0) {
+   discardSlot(0);
+  }
+ }
+
+ /** Returns a string summary of the recompiler's state */
+ public String getInfo() {
+  return numBlocks + " blocks compiled, " + slotsInUse + " banks in use";
+ }
+
+}
@@ -0,0 +1,137 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.util.Arrays;
+
+/** Records writes to the LCD registers that raster effects depend on, stamped with the line the
+ *  display was on when they happened.  At the end of the visible part of the frame, latch() works
+ *  out the value of each register on every line, so that the whole frame can be drawn in one go
+ *  with status bars, split scrolling and wavy effects in the right place.
+ *  Writes made while the display is on line L take effect from line L, which matches the point
+ *  at which the other graphics chips read the registers.  Writes during the vertical blank take
+ *  effect from the top of the next frame.
+ */
+class RegisterLatch {
+ static final int NUM_LINES = 144;
+
+ static final int LCDC = 0;
+ static final int SCY = 1;
+ static final int SCX = 2;
+ static final int BGP = 3;
+ static final int WY = 4;
+ static final int WX = 5;
+ static final int OBP0 = 6;
+ static final int OBP1 = 7;
+ static final int NUM_REGISTERS = 8;
+
+ /** The value of each register on each line, NUM_REGISTERS per line.  Only complete after
+  *  latch() has been called.
+  */
+ byte[] lines = new byte[NUM_LINES * NUM_REGISTERS];
+
+ /** For each line, a bit for each register that was written while the line was displayed */
+ byte[] written = new byte[NUM_LINES];
+
+ /** The registers at the top of the frame */
+ byte[] frameStart = new byte[NUM_REGISTERS];
+
+ /** Returns which latched register an IO register number is, or -1 if it isn't latched */
+ static int registerIndex(int num) {
+  switch (num) {
+   case 0x40 : return LCDC;
+   case 0x42 : return SCY;
+   case 0x43 : return SCX;
+   case 0x47 : return BGP;
+   case 0x48 : return OBP0;
+   case 0x49 : return OBP1;
+   case 0x4A : return WY;
+   case 0x4B : return WX;
+   default : return -1;
+  }
+ }
+
+ /** Records a write to an IO register, if it's one that is latched */
+ public void write(int line, int num, int data) {
+  int reg = registerIndex(num);
+  if (reg == -1) return;
+  if (line < NUM_LINES) {
+   lines[(line * NUM_REGISTERS) + reg] = (byte) data;
+   written[line] |= (1 << reg);
+  } else {
+   frameStart[reg] = (byte) data;
+  }
+ }
+
+ /** Fills in the registers on the lines where they weren't written, and starts the next frame
+  *  with the values on the last line.
+  */
+ public void latch() {
+  int pos = 0;
+  byte[] previous = frameStart;
+  int previousPos = 0;
+  for (int line = 0; line < NUM_LINES; line++) {
+   int bits = written[line];
+   for (int reg = 0; reg < NUM_REGISTERS; reg++) {
+    if ((bits & (1 << reg)) == 0) {
+     lines[pos + reg] = previous[previousPos + reg];
+    }
+   }
+   written[line] = 0;
+   previous = lines;
+   previousPos = pos;
+   pos += NUM_REGISTERS;
+  }
+  System.arraycopy(lines, previousPos, frameStart, 0, NUM_REGISTERS);
+ }
+
+ /** Returns the value a register had on a line, after latch() */
+ public int get(int line, int reg) {
+  return lines[(line * NUM_REGISTERS) + reg] & 0xFF;
+ }
+
+ /** Returns true if all the latched registers are the same on the two lines */
+ public boolean sameRegisters(int line1, int line2) {
+  int pos1 = line1 * NUM_REGISTERS;
+  int pos2 = line2 * NUM_REGISTERS;
+  for (int reg = 0; reg < NUM_REGISTERS; reg++) {
+   if (lines[pos1 + reg] != lines[pos2 + reg]) return false;
+  }
+  return true;
+ }
+
+ /** Discards any writes recorded this frame, and starts again from the current registers */
+ public void reset(byte[] registers) {
+  for (int num = 0x40; num <= 0x4B; num++) {
+   int reg = registerIndex(num);
+   if (reg != -1) frameStart[reg] = registers[num];
+  }
+  Arrays.fill(written, (byte) 0);
+ }
+
+ /** Copies the writes recorded by another latch, for a forked machine */
+ public void copyState(RegisterLatch from) {
+  System.arraycopy(from.lines, 0, lines, 0, lines.length);
+  System.arraycopy(from.written, 0, written, 0, written.length);
+  System.arraycopy(from.frameStart, 0, frameStart, 0, frameStart.length);
+ }
+}
@@ -0,0 +1,173 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Keeps the recent history of the machine so that play can be rewound.  A state is captured
+ *  at the end of every frame.  Only the newest state is kept whole.  For each older frame, the
+ *  buffer stores the difference between it and the frame after it: the two states XORed
+ *  together, compressed by ZeroRunCodec as most bytes don't change.  Rewinding
+ *  applies these differences to the newest state one at a time, newest first.
+ *  <P>
+ *  The differences are stored one after another in a ring.  When the ring is full, the oldest
+ *  frames are forgotten.
+ */
+class RewindBuffer {
+ /** One minute of frames, in 8Mb */
+ static final int DEFAULT_FRAMES = 60 * 60;
+ static final int DEFAULT_BYTES = 8 * 1024 * 1024;
+
+ /** The most recently captured state, which the stored differences lead back from */
+ SaveState latest = new SaveState();
+
+ /** The state being captured */
+ SaveState next = new SaveState();
+ boolean haveLatest = false;
+
+ /** Encoded differences, stored in a ring */
+ byte[] store;
+ int storeEnd = 0;
+
+ /** Position and length in store of each frame's difference, in a ring.  Entry first is the
+  *  oldest frame, and there are count frames.
+  */
+ int[] frameStart;
+ int[] frameLength;
+ int first = 0;
+ int count = 0;
+
+ /** Space to encode a difference before it is copied into the store.  Big enough for the
+  *  worst case, where every byte has changed.
+  */
+ byte[] encoded = new byte[ZeroRunCodec.maxCompressedLength(SaveState.MAX_SIZE)];
+
+ /** Create a rewind buffer holding up to maxFrames frames, in storeBytes bytes */
+ public RewindBuffer(int maxFrames, int storeBytes) {
+  frameStart = new int[maxFrames];
+  frameLength = new int[maxFrames];
+  store = new byte[storeBytes];
+ }
+
+ public RewindBuffer() {
+  this(DEFAULT_FRAMES, DEFAULT_BYTES);
+ }
+
+ /** Captures the state of the machine.  Called by the CPU at the end of each frame. */
+ public void capture(Dmgcpu dmgcpu) {
+  next.save(dmgcpu);
+
+  if (haveLatest) {
+   int length = next.buffer.limit();
+   if (length != latest.buffer.limit()) {
+    // The layout has changed (e.g. sound has been turned off), so the history can't be used
+    clear();
+   } else {
+    int encodedLength = ZeroRunCodec.compressXor(next.buffer.array(), latest.buffer.array(), length, encoded, 0);
+    addFrame(encodedLength);
+   }
+  }
+
+  SaveState s = latest;
+  latest = next;
+  next = s;
+  haveLatest = true;
+ }
+
+ /** Restores the machine to the state it was in the specified number of frames before the
+  *  last capture.  Goes back as far as possible if there aren't enough frames stored.  Returns
+  *  the number of frames gone back, or -1 if nothing has been captured yet.  The CPU must not
+  *  be executing.
+  */
+ public int rewind(Dmgcpu dmgcpu, int frames) {
+  if (!haveLatest) return -1;
+
+  int r = 0;
+  while ((r < frames) && (count > 0)) {
+   int last = (first + count - 1) % frameStart.length;
+   ZeroRunCodec.decompressXor(store, frameStart[last], frameLength[last], latest.buffer.array());
+   storeEnd = frameStart[last];
+   count--;
+   r++;
+  }
+
+  latest.load(dmgcpu);
+  return r;
+ }
+
+ /** Forgets all stored frames */
+ public void clear() {
+  first = 0;
+  count = 0;
+  storeEnd = 0;
+  haveLatest = false;
+ }
+
+ /** Returns the number of frames that can be rewound */
+ public int getFrames() {
+  return count;
+ }
+
+ /** Returns the number of bytes used by the stored differences */
+ public int getBytesUsed() {
+  int total = 0;
+  for (int r = 0; r < count; r++) {
+   total += frameLength[(first + r) % frameStart.length];
+  }
+  return total;
+ }
+
+ /** Copies the encoded difference into the store as the newest frame, forgetting the oldest
+  *  frames to make room
+  */
+ void addFrame(int length) {
+  if (length > store.length) {
+   clear();
+   return;
+  }
+
+  if (count == frameStart.length) dropOldest();
+
+  int start = storeEnd;
+  if (start + length > store.length) {
+   // Wrap around to the start of the store.  Frames left past the end of the last lap are
+   // the oldest, so they go first.
+   while ((count > 0) && (frameStart[first] >= storeEnd)) dropOldest();
+   start = 0;
+  }
+  while ((count > 0) && (frameStart[first] < start + length) &&
+         (frameStart[first] + frameLength[first] > start)) {
+   dropOldest();
+  }
+
+  System.arraycopy(encoded, 0, store, start, length);
+  int index = (first + count) % frameStart.length;
+  frameStart[index] = start;
+  frameLength[index] = length;
+  count++;
+  storeEnd = start + length;
+ }
+
+ void dropOldest() {
+  first = (first + 1) % frameStart.length;
+  count--;
+ }
+
+}
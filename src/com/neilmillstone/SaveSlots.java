@@ -0,0 +1,172 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** The quick save slots for a ROM, kept in one file next to it (game.jbs for game.gb).  The
+ *  file is made full size when first opened and mapped into memory, so saving a slot is only a
+ *  copy of the state into the mapping.  Writing it to disk is left to a background thread, which
+ *  forces the mapping out after each save without holding up the emulation.
+ *  <P>
+ *  The file starts with a header, followed by NUM_SLOTS slots of SLOT_SIZE bytes.  Each slot
+ *  holds the compressed length of the state, or zero if the slot is empty, and its length
+ *  before compression, then the state compressed with ZeroRunCodec.  Most of a state is empty
+ *  RAM, so this leaves far fewer pages of the mapping to be written to disk.
+ */
+class SaveSlots implements Runnable {
+ /** 'JBSF' */
+ static final int MAGIC = 0x4A425346;
+ static final int VERSION = 2;
+
+ static final int NUM_SLOTS = 10;
+ static final int HEADER_SIZE = 16;
+ static final int SLOT_SIZE = 8 + ZeroRunCodec.maxCompressedLength(SaveState.MAX_SIZE);
+ static final int FILE_SIZE = HEADER_SIZE + NUM_SLOTS * SLOT_SIZE;
+
+ String romFileName;
+ String fileName;
+ MappedByteBuffer mapping;
+
+ /** Reused for every save and load, so that they create no garbage */
+ SaveState state = new SaveState();
+ byte[] packed = new byte[ZeroRunCodec.maxCompressedLength(SaveState.MAX_SIZE)];
+
+ /** Set when the mapping has changed since it was last forced to disk */
+ boolean forcePending = false;
+ boolean closed = false;
+ Thread forceThread;
+
+ /** Opens the save slot file for the ROM, creating it if it doesn't exist.  If the file was
+  *  written for a different ROM or version, all the slots are cleared.
+  */
+ public SaveSlots(String romFileName, int romChecksum) throws IOException {
+  this.romFileName = romFileName;
+  int dotPosition = romFileName.lastIndexOf('.');
+  if (dotPosition != -1) {
+   fileName = romFileName.substring(0, dotPosition) + ".jbs";
+  } else {
+   fileName = romFileName + ".jbs";
+  }
+
+  RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+  try {
+   file.setLength(FILE_SIZE);
+   mapping = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+  } finally {
+   file.close();  // The mapping stays valid after the file is closed
+  }
+
+  if ((mapping.getInt(0) != MAGIC) || (mapping.getInt(4) != VERSION) ||
+      (mapping.getInt(8) != romChecksum)) {
+   for (int r = 0; r < NUM_SLOTS; r++) {
+    mapping.putInt(slotOffset(r), 0);
+   }
+   mapping.putInt(0, MAGIC);
+   mapping.putInt(4, VERSION);
+   mapping.putInt(8, romChecksum);
+   mapping.putInt(12, NUM_SLOTS);
+   mapping.force();
+  }
+
+  forceThread = new Thread(this, "Save slot writer");
+  forceThread.setDaemon(true);
+  forceThread.start();
+ }
+
+ int slotOffset(int slot) {
+  return HEADER_SIZE + slot * SLOT_SIZE;
+ }
+
+ /** Returns true if the slot holds a state */
+ public boolean isUsed(int slot) {
+  return mapping.getInt(slotOffset(slot)) != 0;
+ }
+
+ /** Saves the state of the machine into the slot, and schedules it to be written to disk */
+ public synchronized void save(int slot, Dmgcpu dmgcpu) {
+  state.save(dmgcpu);
+  int offset = slotOffset(slot);
+  int length = state.compressTo(packed, 0);
+
+  mapping.putInt(offset, 0);
+  mapping.putInt(offset + 4, state.buffer.limit());
+  mapping.position(offset + 8);
+  mapping.put(packed, 0, length);
+  mapping.putInt(offset, length);
+
+  forcePending = true;
+  notify();
+ }
+
+ /** Restores the machine to the state in the slot.  Returns false if the slot is empty or
+  *  the state can't be loaded.
+  */
+ public synchronized boolean load(int slot, Dmgcpu dmgcpu) {
+  int offset = slotOffset(slot);
+  int length = mapping.getInt(offset);
+  if ((length <= 0) || (length > packed.length)) {
+   System.out.println("Save slot " + slot + " is empty");
+   return false;
+  }
+
+  int stateLength = mapping.getInt(offset + 4);
+  mapping.position(offset + 8);
+  mapping.get(packed, 0, length);
+  if (!state.decompressFrom(packed, 0, length, stateLength)) return false;
+  return state.load(dmgcpu);
+ }
+
+ /** Forces the mapping to disk whenever a slot has been saved */
+ public void run() {
+  while (true) {
+   synchronized (this) {
+    while (!forcePending && !closed) {
+     try {
+      wait();
+     } catch (InterruptedException e) {
+      return;
+     }
+    }
+    if (!forcePending) return;
+    forcePending = false;
+   }
+   mapping.force();
+  }
+ }
+
+ /** Writes any outstanding saves to disk and stops the writer thread */
+ public void close() {
+  synchronized (this) {
+   closed = true;
+   notify();
+  }
+  try {
+   forceThread.join();
+  } catch (InterruptedException e) {
+   // Nothing!
+  }
+ }
+
+}
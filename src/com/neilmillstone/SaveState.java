@@ -0,0 +1,243 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** A snapshot of the complete state of the emulated machine.  The state is held in a buffer
+ *  that is allocated once, so states can be saved and loaded many times a second without
+ *  creating any garbage.
+ *  <P>
+ *  The layout is a magic number and a format version, followed by a section for each part of
+ *  the machine.  Each section starts with its tag and length, so that sections which aren't
+ *  recognised (or have no object to load into, such as sound when there is no sound chip) can
+ *  be skipped.  The list of sections ends with SECTION_END.
+ */
+class SaveState {
+ /** 'JBSS' */
+ static final int MAGIC = 0x4A425353;
+ static final int VERSION = 1;
+
+ static final int SECTION_END = 0;
+ static final int SECTION_CPU = 1;
+ static final int SECTION_IO = 2;
+ static final int SECTION_GRAPHICS = 3;
+ static final int SECTION_CARTRIDGE = 4;
+ static final int SECTION_SOUND = 5;
+
+ /** Enough space for all the RAM in the machine, plus the registers */
+ static final int MAX_SIZE = 0x22000;
+
+ ByteBuffer buffer = ByteBuffer.allocate(MAX_SIZE);
+
+ /** The machine's state before a load, to go back to if the state is corrupt.  Allocated when
+  *  first used.
+  */
+ SaveState backup;
+
+ /** Saves the state of the machine into the buffer.  Afterwards, the buffer's limit is the
+  *  length of the state.
+  */
+ public void save(Dmgcpu dmgcpu) {
+  buffer.clear();
+  buffer.putInt(MAGIC);
+  buffer.putInt(VERSION);
+
+  int start = beginSection(SECTION_CPU);
+  dmgcpu.saveState(buffer);
+  endSection(start);
+
+  start = beginSection(SECTION_IO);
+  dmgcpu.ioHandler.saveState(buffer);
+  endSection(start);
+
+  start = beginSection(SECTION_GRAPHICS);
+  dmgcpu.graphicsChip.saveState(buffer);
+  endSection(start);
+
+  start = beginSection(SECTION_CARTRIDGE);
+  dmgcpu.cartridge.saveState(buffer);
+  endSection(start);
+
+  if (dmgcpu.soundChip != null) {
+   start = beginSection(SECTION_SOUND);
+   dmgcpu.soundChip.saveState(buffer);
+   endSection(start);
+  }
+
+  buffer.putInt(SECTION_END);
+  buffer.flip();
+ }
+
+ /** Restores the machine to the state in the buffer.  Returns false, leaving the machine
+  *  unchanged, if the buffer doesn't hold a complete state in this version of the format, or if
+  *  any of its sections turn out to be corrupt.
+  */
+ public boolean load(Dmgcpu dmgcpu) {
+  if (!isValid()) {
+   System.out.println("Not a save state, or saved by a different version of JavaBoy");
+   return false;
+  }
+
+  // Sections can still hold nonsense that is only found part way through loading, so keep
+  // the current state to go back to
+  if (backup == null) backup = new SaveState();
+  backup.save(dmgcpu);
+
+  try {
+   loadSections(dmgcpu);
+  } catch (RuntimeException e) {
+   System.out.println("Save state is corrupt: " + e);
+   backup.loadSections(dmgcpu);
+   return false;
+  }
+  return true;
+ }
+
+ /** Returns true if the buffer starts with the magic number and version, and its sections
+  *  all fit inside it and are followed by SECTION_END.
+  */
+ boolean isValid() {
+  int limit = buffer.limit();
+  if ((limit < 12) || (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+   return false;
+  }
+
+  int pos = 8;
+  while (pos <= limit - 4) {
+   if (buffer.getInt(pos) == SECTION_END) return true;
+   if (pos > limit - 8) return false;
+   int length = buffer.getInt(pos + 4);
+   if ((length < 0) || (length > limit - pos - 8)) return false;
+   pos += 8 + length;
+  }
+  return false;
+ }
+
+ /** Loads each section of a state that has been checked by isValid().  The buffer is limited
+  *  to the section being loaded, so a section that is shorter than it should be throws an
+  *  exception instead of reading from the next one.
+  */
+ void loadSections(Dmgcpu dmgcpu) {
+  int limit = buffer.limit();
+  buffer.position(8);
+  try {
+   int section;
+   while ((section = buffer.getInt()) != SECTION_END) {
+    int length = buffer.getInt();
+    int end = buffer.position() + length;
+    buffer.limit(end);
+    switch (section) {
+     case SECTION_CPU :
+      dmgcpu.loadState(buffer);
+      break;
+     case SECTION_IO :
+      dmgcpu.ioHandler.loadState(buffer);
+      break;
+     case SECTION_GRAPHICS :
+      dmgcpu.graphicsChip.loadState(buffer);
+      break;
+     case SECTION_CARTRIDGE :
+      dmgcpu.cartridge.loadState(buffer);
+      break;
+     case SECTION_SOUND :
+      if (dmgcpu.soundChip != null) dmgcpu.soundChip.loadState(buffer);
+      break;
+    }
+    buffer.limit(limit);
+    buffer.position(end);
+   }
+
+   dmgcpu.stateLoaded();
+  } finally {
+   buffer.limit(limit);
+  }
+ }
+
+ /** Writes the section header, leaving space for the length.  Returns the position of the
+  *  length, to be passed to endSection().
+  */
+ int beginSection(int section) {
+  buffer.putInt(section);
+  int start = buffer.position();
+  buffer.putInt(0);
+  return start;
+ }
+
+ /** Fills in the length of the section that was started at the given position */
+ void endSection(int start) {
+  buffer.putInt(start, buffer.position() - start - 4);
+ }
+
+ /** Writes the saved state to a stream, for example a file */
+ public void writeTo(OutputStream os) throws IOException {
+  os.write(buffer.array(), 0, buffer.limit());
+ }
+
+ /** Compresses the saved state into out at outPos, for storing or sending.  out must have
+  *  room for ZeroRunCodec.maxCompressedLength(MAX_SIZE) bytes.  Returns the compressed length.
+  */
+ public int compressTo(byte[] out, int outPos) {
+  return ZeroRunCodec.compress(buffer.array(), 0, buffer.limit(), out, outPos);
+ }
+
+ /** Replaces the state with one compressed by compressTo(), ready to be loaded.  Returns
+  *  false, leaving nothing to load, if the data is corrupt or doesn't decompress to
+  *  stateLength bytes.
+  */
+ public boolean decompressFrom(byte[] in, int inPos, int length, int stateLength) {
+  buffer.clear();
+  buffer.limit(0);
+  int decompressed;
+  try {
+   decompressed = ZeroRunCodec.decompress(in, inPos, length, buffer.array(), 0);
+  } catch (IndexOutOfBoundsException e) {
+   System.out.println("Compressed save state is corrupt: " + e.getMessage());
+   return false;
+  }
+  if (decompressed != stateLength) {
+   System.out.println("Compressed save state is corrupt");
+   return false;
+  }
+  buffer.limit(stateLength);
+  return true;
+ }
+
+ /** Reads a saved state written by writeTo() from a stream, ready to be loaded.  If the stream
+  *  is too long, nothing is left to load.
+  */
+ public void readFrom(InputStream is) throws IOException {
+  int length = 0;
+  int read;
+  while ((length < MAX_SIZE) && ((read = is.read(buffer.array(), length, MAX_SIZE - length)) != -1)) {
+   length += read;
+  }
+  buffer.clear();
+  buffer.limit(length);
+  if ((length == MAX_SIZE) && (is.read() != -1)) {
+   System.out.println("Save state file is too long");
+   buffer.limit(0);
+  }
+ }
+
+}
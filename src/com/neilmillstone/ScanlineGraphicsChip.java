@@ -0,0 +1,246 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** A graphics chip that draws each scanline as the display hardware finishes it, straight into
+ *  an array of 160 x 144 RGB pixels.  Because every line is drawn with the registers as they are
+ *  at the end of that line, changes to the scroll position, window, palettes and sprites part way
+ *  down the screen show up in the right place.
+ *  <P>
+ *  The background and window are drawn first, recording the colour number of each pixel so that
+ *  sprites can be placed behind them.  Up to ten sprites per line are then drawn, in the order
+ *  the hardware gives them priority.  Code that runs without a display can read the pixels
+ *  directly from getFrameBuffer().
+ */
+class ScanlineGraphicsChip extends GraphicsChip {
+ /** Bits of lineColour: the colour number, the GBC background priority attribute, and a flag
+  *  for pixels already drawn by a sprite with higher priority
+  */
+ static final int COLOUR_MASK = 0x03;
+ static final int BG_PRIORITY = 0x04;
+ static final int SPRITE_DRAWN = 0x08;
+
+ /** Colour numbers and flags for each pixel of the line being drawn */
+ byte[] lineColour = new byte[SCREEN_WIDTH];
+
+ /** OAM entries of the sprites on the line being drawn, in priority order */
+ int[] lineSprites = new int[10];
+
+ /** The line of the window to draw next.  It only advances on lines where the window is shown. */
+ int windowLine;
+
+ public ScanlineGraphicsChip(Dmgcpu d) {
+  super(d);
+  frameBuffer = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+ }
+
+ /** Reads data from the specified video RAM address */
+ public short addressRead(int addr) {
+  return videoRam[addr + vidRamStart];
+ }
+
+ /** Writes data to the specified video RAM address */
+ public void addressWrite(int addr, byte data) {
+  if (videoRamShared) unshareVideoRam();
+  videoRam[addr + vidRamStart] = data;
+  videoRamDirty.mark(addr + vidRamStart);
+ }
+
+ /** Nothing is cached, so there is nothing to invalidate */
+ public void invalidateAll() {
+ }
+
+ /** Called by the CPU as each scanline ends.  Draws the line if this frame is being shown. */
+ public void notifyScanline(int line) {
+  if (line == 0) windowLine = 0;
+  if ((line < SCREEN_HEIGHT) && ((framesDrawn % frameSkip) == 0)) {
+   drawLine(line);
+  }
+ }
+
+ /** Draws the background, window and sprites of one line into the frame buffer */
+ void drawLine(int line) {
+  byte[] registers = dmgcpu.ioHandler.registers;
+  int lcdc = registers[0x40] & 0xFF;
+  int offset = line * SCREEN_WIDTH;
+  int blank = backgroundPalette.colours[0];
+
+  if ((lcdc & 0x80) == 0) {       // LCD off
+   for (int x = 0; x < SCREEN_WIDTH; x++) {
+    frameBuffer[offset + x] = blank;
+   }
+   return;
+  }
+
+  // The background and window are blank if bit 0 is clear, except on the GBC, where it only
+  // takes away their priority over sprites
+  boolean bgOn = ((lcdc & 0x01) != 0) || dmgcpu.gbcFeatures;
+
+  if (bgOn) {
+   int scrollY = registers[0x42] & 0xFF;
+   int scrollX = registers[0x43] & 0xFF;
+   int y = (line + scrollY) & 0xFF;
+   int mapAddress = ((lcdc & 0x08) != 0) ? 0x1C00 : 0x1800;
+   drawTiles(offset, 0, mapAddress + ((y >> 3) * 32), scrollX, y & 7, lcdc);
+  } else {
+   for (int x = 0; x < SCREEN_WIDTH; x++) {
+    frameBuffer[offset + x] = blank;
+    lineColour[x] = 0;
+   }
+  }
+
+  int windowY = registers[0x4A] & 0xFF;
+  int windowX = (registers[0x4B] & 0xFF) - 7;
+  if (bgOn && ((lcdc & 0x20) != 0) && (line >= windowY) && (windowX < SCREEN_WIDTH)) {
+   int mapAddress = ((lcdc & 0x40) != 0) ? 0x1C00 : 0x1800;
+   if (windowX < 0) {
+    drawTiles(offset, 0, mapAddress + ((windowLine >> 3) * 32), -windowX, windowLine & 7, lcdc);
+   } else {
+    drawTiles(offset, windowX, mapAddress + ((windowLine >> 3) * 32), 0, windowLine & 7, lcdc);
+   }
+   windowLine++;
+  }
+
+  if ((lcdc & 0x02) != 0) {
+   drawSprites(line, offset, lcdc);
+  }
+ }
+
+ /** Draws a row of background or window tiles from screen position startX to the right edge.
+  *  mapRow is the address of the row in the tile map, mapX the pixel within the row that
+  *  appears at startX, and tileY the line within the tiles.
+  */
+ void drawTiles(int offset, int startX, int mapRow, int mapX, int tileY, int lcdc) {
+  boolean gbc = dmgcpu.gbcFeatures;
+  boolean unsignedTiles = (lcdc & 0x10) != 0;
+  int x = startX;
+
+  while (x < SCREEN_WIDTH) {
+   int mapAddress = mapRow + ((mapX >> 3) & 0x1F);
+   int dataAddress;
+   if (unsignedTiles) {
+    dataAddress = (videoRam[mapAddress] & 0xFF) << 4;
+   } else {
+    dataAddress = (256 + videoRam[mapAddress]) << 4;
+   }
+
+   int attributes = 0;
+   GameboyPalette palette = backgroundPalette;
+   int row = tileY;
+   if (gbc) {
+    attributes = videoRam[mapAddress + 0x2000] & 0xFF;
+    palette = gbcBackground[attributes & 0x07];
+    if ((attributes & 0x08) != 0) dataAddress += 0x2000;
+    if ((attributes & 0x40) != 0) row = 7 - row;
+   }
+   int low = videoRam[dataAddress + (row * 2)] & 0xFF;
+   int high = videoRam[dataAddress + (row * 2) + 1] & 0xFF;
+   boolean flipX = (attributes & 0x20) != 0;
+   int priority = ((attributes & 0x80) != 0) ? BG_PRIORITY : 0;
+
+   for (int px = mapX & 7; (px < 8) && (x < SCREEN_WIDTH); px++) {
+    int bit = flipX ? px : 7 - px;
+    int colour = ((low >> bit) & 1) | (((high >> bit) & 1) << 1);
+    lineColour[x] = (byte) (colour | priority);
+    frameBuffer[offset + x] = palette.getRgbEntry(colour);
+    x++;
+    mapX++;
+   }
+  }
+ }
+
+ /** Draws the sprites that appear on a line.  The hardware shows at most ten per line, taking
+  *  the first ten in OAM.  Where they overlap, the original Gameboy shows the one furthest left,
+  *  or the first in OAM if they're level, and the GBC always shows the first in OAM.
+  */
+ void drawSprites(int line, int offset, int lcdc) {
+  byte[] oam = dmgcpu.oam;
+  boolean gbc = dmgcpu.gbcFeatures;
+  int height = ((lcdc & 0x04) != 0) ? 16 : 8;
+
+  int count = 0;
+  for (int i = 0; (i < 160) && (count < 10); i += 4) {
+   int spriteY = (oam[i] & 0xFF) - 16;
+   if ((line >= spriteY) && (line < spriteY + height)) {
+    int pos = count++;
+    if (!gbc) {
+     int spriteX = oam[i + 1] & 0xFF;
+     while ((pos > 0) && ((oam[lineSprites[pos - 1] + 1] & 0xFF) > spriteX)) {
+      lineSprites[pos] = lineSprites[pos - 1];
+      pos--;
+     }
+    }
+    lineSprites[pos] = i;
+   }
+  }
+
+  for (int s = 0; s < count; s++) {
+   int i = lineSprites[s];
+   int spriteX = (oam[i + 1] & 0xFF) - 8;
+   int tileNum = oam[i + 2] & 0xFF;
+   int attributes = oam[i + 3] & 0xFF;
+
+   int row = line - ((oam[i] & 0xFF) - 16);
+   if ((attributes & 0x40) != 0) row = height - 1 - row;
+   if (height == 16) tileNum &= 0xFE;
+   int dataAddress = (tileNum << 4) + (row * 2);
+
+   GameboyPalette palette;
+   if (gbc) {
+    if ((attributes & 0x08) != 0) dataAddress += 0x2000;
+    palette = gbcSprite[attributes & 0x07];
+   } else if ((attributes & 0x10) != 0) {
+    palette = obj2Palette;
+   } else {
+    palette = obj1Palette;
+   }
+   int low = videoRam[dataAddress] & 0xFF;
+   int high = videoRam[dataAddress + 1] & 0xFF;
+   boolean flipX = (attributes & 0x20) != 0;
+   boolean behind = (attributes & 0x80) != 0;
+
+   for (int px = 0; px < 8; px++) {
+    int x = spriteX + px;
+    if ((x < 0) || (x >= SCREEN_WIDTH)) continue;
+    int bit = flipX ? px : 7 - px;
+    int colour = ((low >> bit) & 1) | (((high >> bit) & 1) << 1);
+    int under = lineColour[x];
+    if ((colour == 0) || ((under & SPRITE_DRAWN) != 0)) continue;
+    lineColour[x] = (byte) (under | SPRITE_DRAWN);
+
+    // Background colours 1-3 cover the sprite if it, or on the GBC the tile, asks for it
+    if ((under & COLOUR_MASK) != 0) {
+     if (gbc) {
+      if (((lcdc & 0x01) != 0) && (behind || ((under & BG_PRIORITY) != 0))) continue;
+     } else if (behind) {
+      continue;
+     }
+    }
+    frameBuffer[offset + x] = palette.getRgbEntry(colour);
+   }
+  }
+ }
+
+ public boolean isFrameReady() {
+  return (framesDrawn % frameSkip) == 0;
+ }
+}
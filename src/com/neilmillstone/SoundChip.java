@@ -25,6 +25,7 @@ import java.awt.*;
 import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.applet.*;
 import java.net.*;
 import java.awt.event.KeyListener;
@@ -147,6 +148,21 @@ class SoundChip {
   }
  }
 
+ /** Writes the state of all four sound channels to a save state */
+ public void saveState(ByteBuffer buffer) {
+  channel1.saveState(buffer);
+  channel2.saveState(buffer);
+  channel3.saveState(buffer);
+  channel4.saveState(buffer);
+ }
+
+ /** Reads the state of all four sound channels from a save state */
+ public void loadState(ByteBuffer buffer) {
+  channel1.loadState(buffer);
+  channel2.loadState(buffer);
+  channel3.loadState(buffer);
+  channel4.loadState(buffer);
+ }
 }
 
 
@@ -0,0 +1,167 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Runs the emulation at a multiple of the speed of a real Gameboy, or as fast as it will go.
+ *  Above normal speed, frames are only shown as often as a real Gameboy would show them, and
+ *  only one frame's sound in every few is played, so that neither the display nor the sound
+ *  output holds the emulation back.
+ */
+class SpeedGovernor implements ThrottlePolicy {
+
+ /** Multiplier that runs the emulation without any throttling */
+ static final int UNLIMITED = 0;
+
+ /** The speeds offered by the user interface */
+ static final int[] SPEEDS = {1, 2, 4, 8, UNLIMITED};
+
+ /** Shortest time between frames being shown, in nanoseconds */
+ static final long PRESENT_INTERVAL = 1000000000L / 60;
+
+ /** Time over which the achieved speed is measured, in nanoseconds */
+ static final long MEASURE_INTERVAL = 1000000000L;
+
+ /** Speed compared with a real Gameboy, or UNLIMITED */
+ int multiplier;
+
+ /** Real time and cycle count at which the speed throttle started */
+ long startTime;
+ long startCycle;
+ boolean running = false;
+
+ /** Real time at which a frame was last shown */
+ long lastPresentTime;
+
+ /** Frames since a frame's sound was last played */
+ int framesSinceSound = 0;
+
+ /** Real time and cycle count at the start of the current measurement, and the speed achieved
+  *  over the last one
+  */
+ long measureTime;
+ long measureCycle;
+ boolean measuring = false;
+ float speedRatio = 0;
+
+ /** Create a governor that runs at the specified multiple of normal speed */
+ public SpeedGovernor(int multiplier) {
+  this.multiplier = multiplier;
+ }
+
+ /** Returns true if the multiplier is one of SPEEDS */
+ static boolean isSupported(int m) {
+  for (int r = 0; r < SPEEDS.length; r++) {
+   if (SPEEDS[r] == m) return true;
+  }
+  return false;
+ }
+
+ /** Change the speed, as a multiple of normal speed or UNLIMITED */
+ public void setMultiplier(int m) {
+  multiplier = m;
+  reset();
+ }
+
+ public int getMultiplier() {
+  return multiplier;
+ }
+
+ /** Returns the speed achieved over the last second, compared with a real Gameboy.  1.0 is
+  *  normal speed.  Returns 0 until a second has been measured.
+  */
+ public float getSpeedRatio() {
+  return speedRatio;
+ }
+
+ /** Sleeps until real time has caught up with the cycles emulated since the throttle
+  *  was started.
+  */
+ public void throttle(Dmgcpu dmgcpu) {
+  long now = System.nanoTime();
+  measure(dmgcpu, now);
+  if (multiplier == UNLIMITED) return;
+
+  if (!running) {
+   startTime = now;
+   startCycle = dmgcpu.cycleCount;
+   running = true;
+   return;
+  }
+
+  long emulatedNanos = (long) ((dmgcpu.cycleCount - startCycle) * (1000000000d / dmgcpu.getCyclesPerSecond()));
+  long wait = startTime + emulatedNanos / multiplier - now;
+
+  if (wait > 0) {
+   try {
+    java.lang.Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+   } catch (InterruptedException e) {
+    // Nothing.
+   }
+  } else if (wait < -100000000L) {
+   // Too far behind to catch up (e.g. the debugger has paused execution), so start again
+   running = false;
+  }
+ }
+
+ /** Works out the achieved speed once a measurement period has passed */
+ void measure(Dmgcpu dmgcpu, long now) {
+  if (!measuring) {
+   measureTime = now;
+   measureCycle = dmgcpu.cycleCount;
+   measuring = true;
+  } else if (now - measureTime >= MEASURE_INTERVAL) {
+   double emulatedNanos = (dmgcpu.cycleCount - measureCycle) * (1000000000d / dmgcpu.getCyclesPerSecond());
+   speedRatio = (float) (emulatedNanos / (now - measureTime));
+   measureTime = now;
+   measureCycle = dmgcpu.cycleCount;
+  }
+ }
+
+ public boolean presentFrame(Dmgcpu dmgcpu) {
+  if (multiplier == 1) return true;
+  long now = System.nanoTime();
+  if (now - lastPresentTime >= PRESENT_INTERVAL) {
+   // Keep to a steady rate, unless the emulation has fallen well behind it
+   if (now - lastPresentTime >= PRESENT_INTERVAL * 2) {
+    lastPresentTime = now;
+   } else {
+    lastPresentTime += PRESENT_INTERVAL;
+   }
+   return true;
+  }
+  return false;
+ }
+
+ public boolean playSound(Dmgcpu dmgcpu) {
+  if (multiplier == 1) return true;
+  if (multiplier == UNLIMITED) return false;
+  if (++framesSinceSound < multiplier) return false;
+  framesSinceSound = 0;
+  return true;
+ }
+
+ public void reset() {
+  running = false;
+  measuring = false;
+ }
+
+}
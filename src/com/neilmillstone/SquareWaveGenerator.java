@@ -25,6 +25,7 @@ import java.awt.*;
 import java.awt.image.*;
 import java.lang.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.applet.*;
 import java.net.*;
 import java.awt.event.KeyListener;
@@ -275,4 +276,41 @@ class SquareWaveGenerator {
   }
  }
 
+ /** Writes the state of the generator to a save state */
+ public void saveState(ByteBuffer buffer) {
+  buffer.putInt(totalLength);
+  buffer.putInt(cyclePos);
+  buffer.putInt(cycleLength);
+  buffer.putInt(amplitude);
+  buffer.putInt(dutyCycle);
+  buffer.putInt(channel);
+  buffer.putInt(initialEnvelope);
+  buffer.putInt(numStepsEnvelope);
+  buffer.put((byte) (increaseEnvelope ? 1 : 0));
+  buffer.putInt(counterEnvelope);
+  buffer.putInt(gbFrequency);
+  buffer.putInt(timeSweep);
+  buffer.putInt(numSweep);
+  buffer.put((byte) (decreaseSweep ? 1 : 0));
+  buffer.putInt(counterSweep);
+ }
+
+ /** Reads the state of the generator from a save state */
+ public void loadState(ByteBuffer buffer) {
+  totalLength = buffer.getInt();
+  cyclePos = buffer.getInt();
+  cycleLength = buffer.getInt();
+  amplitude = buffer.getInt();
+  dutyCycle = buffer.getInt();
+  channel = buffer.getInt();
+  initialEnvelope = buffer.getInt();
+  numStepsEnvelope = buffer.getInt();
+  increaseEnvelope = buffer.get() != 0;
+  counterEnvelope = buffer.getInt();
+  gbFrequency = buffer.getInt();
+  timeSweep = buffer.getInt();
+  numSweep = buffer.getInt();
+  decreaseSweep = buffer.get() != 0;
+  counterSweep = buffer.getInt();
+ }
 }
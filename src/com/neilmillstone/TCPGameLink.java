@@ -152,7 +152,7 @@ class TCPGameLink extends GameLink implements Runnable {
     while ((data != -1) && (!terminate)) {           /* This needs to terminate */
 
      if (dmgcpu != null) {
-      v = dmgcpu.instrCount;
+      v = (int) dmgcpu.instrCount;
      }
 
      initial = inStream.read();
@@ -221,7 +221,7 @@ class TCPGameLink extends GameLink implements Runnable {
  public void send(byte b) {
   try {
    outStream.write(1);
-   writeInt(outStream, dmgcpu.instrCount);
+   writeInt(outStream, (int) dmgcpu.instrCount);
    outStream.write(b);
    outStream.flush();
 
@@ -0,0 +1,43 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** Decides how fast the emulation runs compared with real time */
+interface ThrottlePolicy {
+
+ /** Called by the CPU at the start of each vblank.  Sleeps if the emulation is running
+  *  ahead of where it should be.
+  */
+ void throttle(Dmgcpu dmgcpu);
+
+ /** Called by the CPU at the end of each frame.  Returns true if the frame should be shown. */
+ boolean presentFrame(Dmgcpu dmgcpu);
+
+ /** Called by the CPU at the end of each frame.  Returns true if the frame's sound should be
+  *  played.
+  */
+ boolean playSound(Dmgcpu dmgcpu);
+
+ /** Forgets the timing so far.  Called when the CPU speed changes. */
+ void reset();
+
+}
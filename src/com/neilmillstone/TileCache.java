@@ -0,0 +1,92 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/** The tiles in video memory, decoded into colour numbers with one byte per pixel.  The colour
+ *  numbers are turned into RGB values through the palette as the tiles are drawn, so the same
+ *  decoded tile serves every palette, and changing a palette doesn't touch the cache.
+ *  <P>
+ *  Tiles 0 - 383 are in the first bank of video memory, and 384 - 767 are in the second bank on
+ *  the GBC.  Each tile is also kept flipped horizontally.  Vertical flips only change the order
+ *  the rows are read in, so they don't need a copy of their own.
+ *  <P>
+ *  A write to a tile only sets its bit in a dirty mask.  The tile is decoded again the next time
+ *  it is drawn, so loading a whole tileset costs one decode per tile that appears on screen, and
+ *  nothing is allocated.
+ */
+class TileCache {
+ static final int NUM_TILES = 384 * 2;
+
+ /** Colour numbers of each tile, 64 bytes per tile, row by row */
+ byte[] pixels = new byte[NUM_TILES * 64];
+
+ /** The same tiles, flipped horizontally */
+ byte[] flippedPixels = new byte[NUM_TILES * 64];
+
+ /** One bit per tile, set if its data in video memory has changed since it was decoded */
+ long[] dirty = new long[NUM_TILES >> 6];
+
+ /** Create a cache with every tile waiting to be decoded */
+ public TileCache() {
+  invalidateAll();
+ }
+
+ /** Returns the offset of the tile in pixels[] and flippedPixels[], decoding it from video
+  *  memory first if it has changed
+  */
+ public final int validate(byte[] videoRam, int tile) {
+  if ((dirty[tile >> 6] & (1L << tile)) != 0) decode(videoRam, tile);
+  return tile << 6;
+ }
+
+ /** Decodes a tile's colour numbers from the two bit planes in video memory */
+ void decode(byte[] videoRam, int tile) {
+  int bank = tile / 384;
+  int address = ((tile - bank * 384) << 4) + bank * 0x2000;
+  int offset = tile << 6;
+
+  for (int y = 0; y < 8; y++) {
+   int low = videoRam[address + (y * 2)] & 0xFF;
+   int high = videoRam[address + (y * 2) + 1] & 0xFF;
+   for (int x = 0; x < 8; x++) {
+    int bit = 7 - x;
+    byte colour = (byte) (((low >> bit) & 1) | (((high >> bit) & 1) << 1));
+    pixels[offset + x] = colour;
+    flippedPixels[offset + 7 - x] = colour;
+   }
+   offset += 8;
+  }
+  dirty[tile >> 6] &= ~(1L << tile);
+ }
+
+ /** Marks a tile as changed, so it is decoded again when next drawn */
+ public final void invalidate(int tile) {
+  dirty[tile >> 6] |= 1L << tile;
+ }
+
+ /** Marks every tile as changed */
+ public void invalidateAll() {
+  for (int r = 0; r < dirty.length; r++) {
+   dirty[r] = -1L;
+  }
+ }
+}
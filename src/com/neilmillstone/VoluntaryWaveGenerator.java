@@ -21,6 +21,8 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
+import java.nio.ByteBuffer;
+
 class VoluntaryWaveGenerator {
  public static final int CHAN_LEFT = 1;
  public static final int CHAN_RIGHT = 2;
@@ -119,4 +121,25 @@ class VoluntaryWaveGenerator {
   }
  }
 
+ /** Writes the state of the generator to a save state */
+ public void saveState(ByteBuffer buffer) {
+  buffer.putInt(totalLength);
+  buffer.putInt(cyclePos);
+  buffer.putInt(cycleLength);
+  buffer.putInt(amplitude);
+  buffer.putInt(channel);
+  buffer.putInt(volumeShift);
+  buffer.put(waveform);
+ }
+
+ /** Reads the state of the generator from a save state */
+ public void loadState(ByteBuffer buffer) {
+  totalLength = buffer.getInt();
+  cyclePos = buffer.getInt();
+  cycleLength = buffer.getInt();
+  amplitude = buffer.getInt();
+  channel = buffer.getInt();
+  volumeShift = buffer.getInt();
+  buffer.get(waveform);
+ }
 }
@@ -0,0 +1,229 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.awt.*;
+import java.awt.image.*;
+import java.lang.*;
+import java.io.*;
+import java.applet.*;
+import java.net.*;
+import java.awt.event.KeyListener;
+import java.awt.event.WindowListener;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentListener;
+import java.awt.event.ItemListener;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowEvent;
+import java.awt.event.ActionEvent;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ItemEvent;
+import java.util.StringTokenizer;
+import javax.sound.sampled.*;
+
+/** Saves the battery RAM to, or loads it from, a web server when running as an applet.
+ *  The user is asked to confirm first.
+ */
+class WebSaveRAM implements Runnable, DialogListener {
+ Cartridge cart;
+ boolean save;
+ URL url;
+ Dmgcpu cpu;
+ String username;
+
+ public WebSaveRAM(URL url, boolean save, Cartridge cart, Dmgcpu cpu, String username) {
+  this.url = url;
+  this.save = save;
+  this.cart = cart;
+  this.cpu = cpu;
+  this.username = username;
+
+  if (!cart.canSave()) {
+
+   ModalDialog d = new ModalDialog(null, "Sorry", "This game does not", "have a save facility.");
+
+  } else {
+
+   if (save) {
+    ModalDialog d = new ModalDialog(null, "Confirm", "Are you sure you want to save?", this);
+   } else {
+    ModalDialog d = new ModalDialog(null, "Confirm", "Are you sure you want to load?", this);
+   }
+  }
+ }
+
+ public void yesPressed() {
+  Thread t = new Thread(this);
+  t.start();
+ }
+
+ public void noPressed() {
+  // Object deleted now
+ }
+ 
+ public void run() {
+  Frame f = new Frame("Please Wait...");
+  f.setSize(200, 120);
+
+  try {
+   if (save) {
+    f.add(new Label("Please wait, saving"), "North");
+    f.add(new Label("game data to web server..."), "Center");   
+    f.show();
+    saveRam();
+    new ModalDialog(null, "Sucess!", "Game data", "Saved ok.");
+   } else {
+    f.add(new Label("Please wait, loading"), "North");
+    f.add(new Label("game data from web server..."), "Center");   
+    f.show();
+    loadRam();
+    new ModalDialog(null, "Success!", "Game data", "loaded ok.");
+   }
+  } catch (NoSaveDataException e) {
+   System.out.println("Error! " + e);
+   new ModalDialog(null, "Error!", "No save data can be found on the server!", e.toString());
+  } catch (Exception e) {
+   System.out.println("Error! " + e);
+   new ModalDialog(null, "Error!", "Load/Save error!  Report to site administrator.", e.toString());
+  }
+  f.hide();
+ }
+
+ public void saveRam() throws Exception {
+//   if (username == null) throw new Exception("No username provided");
+
+   String params = "";
+   String strUrl = url.toString();
+   int questionPos = strUrl.indexOf("?");
+   if (questionPos != -1) {
+    params = "&" + strUrl.substring(questionPos + 1, strUrl.length());
+   }
+
+   System.out.println("Params: (" + url + ") " + params);
+
+   url = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile() + "?user=" + URLEncoder.encode(username));
+
+   HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+
+
+   conn.setRequestMethod("POST");
+   conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+   conn.setDoOutput(true);
+   conn.setDoInput(true);
+
+   conn.connect();
+
+   DataOutputStream printout = new DataOutputStream(conn.getOutputStream());
+
+   StringBuffer saveData = new StringBuffer("");
+   byte[] ram = cart.getBatteryRam();
+
+   for (int r = 0; r < cart.getBatteryRamSize(); r++) {
+    saveData.append(JavaBoy.hexByte(JavaBoy.unsign(ram[r])));
+   }
+//   saveData = URLEncoder.encode("Hel\0lo");
+
+   String content = "romname=" + URLEncoder.encode(cart.getRomFilename()) + "&gamename=" + URLEncoder.encode(cart.getCartName()) + "&user=" + URLEncoder.encode(username) + "&datalength=" + (cart.getBatteryRamSize() * 2) + "&data0=" + saveData + params;
+
+   System.out.println(content);
+
+   printout.writeBytes(content);
+   printout.flush ();
+   printout.close ();
+ 
+   conn.disconnect();
+
+   DataInputStream input = new DataInputStream (conn.getInputStream());
+   String str;
+   while (null != ((str = input.readLine()))) {
+    System.out.println(str);
+   }
+
+   System.out.println("OK!");
+  }
+ 
+  public void loadRam() throws Exception {
+//   if (username == null) throw new Exception("No username provided");
+
+   String params = "";
+   String strUrl = url.toString();
+   int questionPos = strUrl.indexOf("?");
+   if (questionPos != -1) {
+    params = "&" + strUrl.substring(questionPos + 1, strUrl.length());
+   }
+
+   System.out.println("Params: (" + url + ") " + params);
+
+   url = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile() + "?user=" + URLEncoder.encode(username) + params);
+
+   HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+
+   conn.setRequestMethod("POST");
+   conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+   conn.setDoOutput(true);
+   conn.setDoInput(true);
+
+   conn.connect();
+
+   DataOutputStream printout = new DataOutputStream(conn.getOutputStream());
+
+
+   String content = "gamename=" + URLEncoder.encode(cart.getCartName()) + "&romname=" + URLEncoder.encode(cart.getRomFilename());
+
+//   System.out.println(content);
+
+   printout.writeBytes(content);
+   printout.flush ();
+   printout.close ();
+ 
+   conn.disconnect();
+
+   DataInputStream input = new DataInputStream (conn.getInputStream());
+   String str;
+   str = input.readLine();
+
+   // No save
+   if (str.equals("NOSAVERAM")) {
+	throw new NoSaveDataException("");
+   }
+
+   // General error
+   if (str.startsWith("ERROR")) {
+	throw new Exception(str);
+   }
+ 
+
+   int pos = 0;
+   if (cart.ramShared) cart.unshareRam();
+   try {
+    for (int r = 0; r < cart.getBatteryRamSize(); r++) {
+     String sub = str.substring(r * 2, r * 2 + 2);
+     int val = Integer.valueOf(sub, 16).intValue();
+	 cart.ram[r] = (byte) val;
+    }
+   } catch (Exception e) {
+	throw e;
+   }
+   cart.ramDirty.markAll();
+   cpu.reset();
+  }
+}
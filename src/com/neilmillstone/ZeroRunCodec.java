@@ -0,0 +1,214 @@
+/*
+
+JavaBoy
+                                  
+COPYRIGHT (C) 2001 Neil Millstone and The Victoria University of Manchester
+                                                                         ;;;
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.        
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.util.Arrays;
+
+/** A fast compressor for machine state, which is mostly long runs of zero bytes: unused RAM
+ *  banks, empty cartridge RAM, and the unchanged parts of the difference between two states.
+ *  The data is coded as a sequence of pairs: the length of a run of zeros, then the length of a
+ *  run of literal bytes followed by the bytes themselves.  Lengths are written seven bits at a
+ *  time, with the top bit set on all but the last byte.  A literal run only ends at
+ *  MIN_ZERO_RUN or more zeros, as shorter runs cost more to code than they save.
+ *  <P>
+ *  The XOR versions code the difference between two buffers without forming it first, for
+ *  storing one state relative to another.  Nothing is allocated, and zeros are skipped eight
+ *  bytes at a time, so the codec can run every frame without holding up the emulation.
+ */
+class ZeroRunCodec {
+
+ /** A run of zeros has to be at least this long to end a run of literal bytes */
+ static final int MIN_ZERO_RUN = 4;
+
+ /** Returns the largest possible compressed size of length bytes, when nothing can be
+  *  compressed.  Output arrays must have this much room.
+  */
+ static int maxCompressedLength(int length) {
+  return length + 16;
+ }
+
+ /** Compresses length bytes of in, starting at inPos, into out at outPos.  Returns the
+  *  compressed length.
+  */
+ static int compress(byte[] in, int inPos, int length, byte[] out, int outPos) {
+  int pos = inPos;
+  int end = inPos + length;
+  int outStart = outPos;
+
+  while (pos < end) {
+   int zeroStart = pos;
+   while ((pos + 8 <= end) && ((in[pos] | in[pos + 1] | in[pos + 2] | in[pos + 3] |
+           in[pos + 4] | in[pos + 5] | in[pos + 6] | in[pos + 7]) == 0)) {
+    pos += 8;
+   }
+   while ((pos < end) && (in[pos] == 0)) pos++;
+   outPos = writeNumber(out, outPos, pos - zeroStart);
+
+   // Literal bytes carry on until a long enough run of zeros
+   int literalStart = pos;
+   int literalEnd = pos;
+   while (pos < end) {
+    if (in[pos] != 0) {
+     pos++;
+     literalEnd = pos;
+    } else if (pos - literalEnd + 1 >= MIN_ZERO_RUN) {
+     break;
+    } else {
+     pos++;
+    }
+   }
+   pos = literalEnd;
+   outPos = writeNumber(out, outPos, literalEnd - literalStart);
+   System.arraycopy(in, literalStart, out, outPos, literalEnd - literalStart);
+   outPos += literalEnd - literalStart;
+  }
+
+  return outPos - outStart;
+ }
+
+ /** Decompresses inLength bytes of in, starting at inPos, into out at outPos.  Returns the
+  *  decompressed length.  Throws IndexOutOfBoundsException if the data is corrupt: a length
+  *  that is cut off or too large, a literal run past the end of the input, or more output than
+  *  fits in out.
+  */
+ static int decompress(byte[] in, int inPos, int inLength, byte[] out, int outPos) {
+  int end = inPos + inLength;
+  int outStart = outPos;
+
+  while (inPos < end) {
+   int value = 0;
+   int shift = 0;
+   int b;
+   do {
+    if ((inPos >= end) || (shift > 28)) throw new IndexOutOfBoundsException("Bad zero run length");
+    b = in[inPos++];
+    value |= (b & 0x7F) << shift;
+    shift += 7;
+   } while ((b & 0x80) != 0);
+   if ((value < 0) || (value > out.length - outPos)) {
+    throw new IndexOutOfBoundsException("Zero run past the end of the output");
+   }
+   Arrays.fill(out, outPos, outPos + value, (byte) 0);
+   outPos += value;
+
+   value = 0;
+   shift = 0;
+   do {
+    if ((inPos >= end) || (shift > 28)) throw new IndexOutOfBoundsException("Bad literal run length");
+    b = in[inPos++];
+    value |= (b & 0x7F) << shift;
+    shift += 7;
+   } while ((b & 0x80) != 0);
+   if ((value < 0) || (value > end - inPos) || (value > out.length - outPos)) {
+    throw new IndexOutOfBoundsException("Literal run past the end of the input or output");
+   }
+   System.arraycopy(in, inPos, out, outPos, value);
+   inPos += value;
+   outPos += value;
+  }
+
+  return outPos - outStart;
+ }
+
+ /** Compresses a XOR b, for the first length bytes of each, into out at outPos.  Returns the
+  *  compressed length.
+  */
+ static int compressXor(byte[] a, byte[] b, int length, byte[] out, int outPos) {
+  int pos = 0;
+  int outStart = outPos;
+
+  while (pos < length) {
+   int zeroStart = pos;
+   while ((pos + 8 <= length) && (((a[pos] ^ b[pos]) | (a[pos + 1] ^ b[pos + 1]) |
+           (a[pos + 2] ^ b[pos + 2]) | (a[pos + 3] ^ b[pos + 3]) | (a[pos + 4] ^ b[pos + 4]) |
+           (a[pos + 5] ^ b[pos + 5]) | (a[pos + 6] ^ b[pos + 6]) | (a[pos + 7] ^ b[pos + 7])) == 0)) {
+    pos += 8;
+   }
+   while ((pos < length) && (a[pos] == b[pos])) pos++;
+   outPos = writeNumber(out, outPos, pos - zeroStart);
+
+   int literalStart = pos;
+   int literalEnd = pos;
+   while (pos < length) {
+    if (a[pos] != b[pos]) {
+     pos++;
+     literalEnd = pos;
+    } else if (pos - literalEnd + 1 >= MIN_ZERO_RUN) {
+     break;
+    } else {
+     pos++;
+    }
+   }
+   pos = literalEnd;
+   outPos = writeNumber(out, outPos, literalEnd - literalStart);
+   for (int r = literalStart; r < literalEnd; r++) {
+    out[outPos++] = (byte) (a[r] ^ b[r]);
+   }
+  }
+
+  return outPos - outStart;
+ }
+
+ /** XORs the difference compressed by compressXor(), inLength bytes of in starting at inPos,
+  *  into data
+  */
+ static void decompressXor(byte[] in, int inPos, int inLength, byte[] data) {
+  int end = inPos + inLength;
+  int pos = 0;
+
+  while (inPos < end) {
+   int value = 0;
+   int shift = 0;
+   int b;
+   do {
+    b = in[inPos++];
+    value |= (b & 0x7F) << shift;
+    shift += 7;
+   } while ((b & 0x80) != 0);
+   pos += value;
+
+   value = 0;
+   shift = 0;
+   do {
+    b = in[inPos++];
+    value |= (b & 0x7F) << shift;
+    shift += 7;
+   } while ((b & 0x80) != 0);
+   for (int r = 0; r < value; r++) {
+    data[pos++] ^= in[inPos++];
+   }
+  }
+ }
+
+ /** Writes a number seven bits at a time, with the top bit set on all but the last byte.
+  *  Returns the position after it.
+  */
+ static int writeNumber(byte[] out, int outPos, int value) {
+  while (value >= 0x80) {
+   out[outPos++] = (byte) ((value & 0x7F) | 0x80);
+   value >>>= 7;
+  }
+  out[outPos++] = (byte) value;
+  return outPos;
+ }
+
+}